@@ -4,25 +4,45 @@ import android.app.Application;
 import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
-import android.widget.Toast;
+
+import java.io.File;
 
 import com.wurq.dex.fixlibrary.Hotfix;
-import com.wurq.dex.fixlibrary.SignVerifyPatchFailedException;
+import com.wurq.dex.fixlibrary.HotfixListener;
+import com.wurq.dex.fixlibrary.HotfixMetrics;
 
 /**
  * Created by wurongqiu on 17/3/2.
  */
 public class HotfixApplication extends Application {
 
+    private static final String TAG = "hotfix";
+
     @Override
     protected void attachBaseContext(Context base) {
         super.attachBaseContext(base);
+        //签名不对的补丁在后台准备时被拒绝, 只能从这里看到
+        HotfixMetrics.setListener(new HotfixListener() {
+            @Override
+            public void onPhase(HotfixMetrics.Phase phase, long durationNanos, long bytes,
+                                int sdkInt, String installer, boolean success) {
+                if (!success) {
+                    Log.e(TAG, phase + " failed, patches rejected for their sign: "
+                            + HotfixMetrics.getCount(HotfixMetrics.Counter.SIGN_REJECTED));
+                }
+            }
+        });
         Hotfix.install(this);
-        try{
-            Hotfix.loadPatch(this, Environment.getExternalStorageDirectory().getAbsolutePath().concat("/patch.apk"), false);
-        }catch (SignVerifyPatchFailedException e){
-            Toast.makeText(this,"exception",Toast.LENGTH_LONG);
-            Log.e("hotfix","sign is not right");
+        //只注入已经准备好的补丁, 新补丁在onCreate里后台准备, 下次启动生效
+        Hotfix.loadPreparedPatch(this);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        String patchPath = Environment.getExternalStorageDirectory().getAbsolutePath().concat("/patch.apk");
+        if (new File(patchPath).exists()) {
+            Hotfix.preparePatchInBackground(this, patchPath, false);
         }
     }
 }
@@ -0,0 +1,199 @@
+package com.wurq.dex.fixlibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code loadClass} of every class of an app with thousands of classes and a small patch, with
+ * the patch prepended to the element list the way {@link DexHotfix#loadPatch} does it, and with
+ * the patch behind an {@link IndexedPatchLoader}. Elements are in memory hash maps standing in
+ * for dex files, so the difference is the per lookup probing, not I/O. Every invocation starts
+ * from fresh loaders so no lookup is answered from a loaded class table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+@Fork(1)
+public class ClassLookupBenchmark {
+
+    @Param({"2000", "10000"})
+    public int classCount;
+
+    @Param({"10"})
+    public int patchedCount;
+
+    /**
+     * Number of dex elements a patch adds in front of the app's when prepended.
+     */
+    @Param({"1", "3"})
+    public int patchDexCount;
+
+    private List<String> names;
+    private Map<String, byte[]> base;
+    private List<Map<String, byte[]>> patch;
+
+    private ClassLoader prepended;
+    private ClassLoader indexed;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        names = new ArrayList<String>(classCount);
+        base = new HashMap<String, byte[]>();
+        for (int i = 0; i < classCount; i++) {
+            String name = "com.example.app.module" + (i % 50) + ".Class" + i;
+            names.add(name);
+            base.put(name, emptyClass(name));
+        }
+        patch = new ArrayList<Map<String, byte[]>>();
+        for (int i = 0; i < patchDexCount; i++) {
+            patch.add(new HashMap<String, byte[]>());
+        }
+        for (int i = 0; i < patchedCount; i++) {
+            String name = names.get(i * classCount / patchedCount);
+            patch.get(i % patchDexCount).put(name, emptyClass(name));
+        }
+        Collections.shuffle(names, new Random(classCount));
+    }
+
+    @Setup(Level.Invocation)
+    public void newLoaders() throws IOException {
+        ClassLoader parent = ClassLookupBenchmark.class.getClassLoader().getParent();
+
+        List<Map<String, byte[]>> elements = new ArrayList<Map<String, byte[]>>(patch);
+        elements.add(base);
+        prepended = new ElementLoader(parent, elements);
+
+        List<ClassSource> sources = new ArrayList<ClassSource>();
+        for (Map<String, byte[]> dex : patch) {
+            sources.add(new ElementSource(parent, dex));
+        }
+        indexed = new ElementLoader(new IndexedPatchLoader(parent, sources, null),
+                Collections.singletonList(base));
+    }
+
+    @Benchmark
+    public int prepend() throws ClassNotFoundException {
+        return loadAll(prepended);
+    }
+
+    @Benchmark
+    public int indexed() throws ClassNotFoundException {
+        return loadAll(indexed);
+    }
+
+    private int loadAll(ClassLoader loader) throws ClassNotFoundException {
+        int hash = 0;
+        for (String name : names) {
+            hash += loader.loadClass(name).hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * Stands in for a class loader over a list of dex elements: probes each element in order.
+     */
+    static final class ElementLoader extends ClassLoader {
+        private final List<Map<String, byte[]>> elements;
+
+        ElementLoader(ClassLoader parent, List<Map<String, byte[]>> elements) {
+            super(parent);
+            this.elements = elements;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            for (Map<String, byte[]> element : elements) {
+                byte[] bytes = element.get(name);
+                if (bytes != null) {
+                    return defineClass(name, bytes, 0, bytes.length);
+                }
+            }
+            throw new ClassNotFoundException(name);
+        }
+    }
+
+    /**
+     * One patch dex for the {@link IndexedPatchLoader}. The JVM does not let a class be defined
+     * in another loader, so the classes are defined in a loader of the source's own; the
+     * generated classes reference nothing, so where they are defined does not change lookups.
+     */
+    static final class ElementSource implements ClassSource {
+        private final Map<String, byte[]> dex;
+        private final ElementLoader loader;
+
+        ElementSource(ClassLoader parent, Map<String, byte[]> dex) {
+            this.dex = dex;
+            this.loader = new ElementLoader(parent, Collections.singletonList(dex));
+        }
+
+        @Override
+        public Collection<String> getClassNames() {
+            return dex.keySet();
+        }
+
+        @Override
+        public Class<?> loadClass(String name, ClassLoader definingLoader) {
+            try {
+                return loader.loadClass(name);
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the class file of {@code public class <name> extends Object}, with no members
+     */
+    static byte[] emptyClass(String name) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(50);
+            out.writeShort(5);
+            out.writeByte(7);
+            out.writeShort(2);
+            out.writeByte(1);
+            out.writeUTF(name.replace('.', '/'));
+            out.writeByte(7);
+            out.writeShort(4);
+            out.writeByte(1);
+            out.writeUTF("java/lang/Object");
+            out.writeShort(0x0021);
+            out.writeShort(1);
+            out.writeShort(3);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
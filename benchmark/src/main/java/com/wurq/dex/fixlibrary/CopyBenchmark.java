@@ -0,0 +1,129 @@
+package com.wurq.dex.fixlibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * {@link FileHelper#copyFile(File, File)}, the channel copy used for patches and uncompressed
+ * assets, against the pooled buffer stream copy {@link FileHelper#copyAsset} falls back to,
+ * both from a plain file and from a deflated archive entry the way a compressed asset is read,
+ * and against the 1 KB stream copy both replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int sizeMb;
+
+    private File dir;
+    private File src;
+    private File dest;
+    private ZipFile assets;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = PatchArchives.createDir("copy");
+        src = PatchArchives.createFile(dir, "src.apk", sizeMb * 1024 * 1024);
+        dest = new File(dir, "dest.apk");
+
+        File apk = new File(dir, "host.apk");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            out.putNextEntry(new ZipEntry("assets/" + Hotfix.HACK_DEX));
+            InputStream in = new FileInputStream(src);
+            try {
+                FileHelper.copyFile(in, out);
+            } finally {
+                in.close();
+            }
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        assets = new ZipFile(apk);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileHelper.closeQuietly(assets);
+        FileHelper.deleteDir(dir);
+    }
+
+    @Benchmark
+    public long copyFile() throws IOException {
+        FileHelper.copyFile(src, dest);
+        return dest.length();
+    }
+
+    @Benchmark
+    public long copyStream() throws IOException {
+        copy(new FileInputStream(src));
+        return dest.length();
+    }
+
+    @Benchmark
+    public long copyLegacyStream() throws IOException {
+        // 以前的做法: 每次调用新建1KB缓冲
+        InputStream in = new FileInputStream(src);
+        try {
+            OutputStream out = new FileOutputStream(dest);
+            try {
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return dest.length();
+    }
+
+    @Benchmark
+    public long copyCompressedAsset() throws IOException {
+        copy(assets.getInputStream(assets.getEntry("assets/" + Hotfix.HACK_DEX)));
+        return dest.length();
+    }
+
+    private void copy(InputStream in) throws IOException {
+        try {
+            OutputStream out = new FileOutputStream(dest);
+            try {
+                FileHelper.copyFile(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
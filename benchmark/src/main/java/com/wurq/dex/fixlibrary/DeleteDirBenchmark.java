@@ -0,0 +1,55 @@
+package com.wurq.dex.fixlibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FileHelper#deleteDir} over an extracted patch tree. The tree is rebuilt before every
+ * invocation, which takes longer than the delete itself, so each run is a single measured call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class DeleteDirBenchmark {
+
+    @Param({"100", "1000"})
+    public int fileCount;
+
+    private File dir;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        dir = PatchArchives.createDir("delete");
+        PatchArchives.createTree(dir, fileCount, 16 * 1024);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        if (dir.exists()) {
+            throw new IllegalStateException(dir + " was not deleted");
+        }
+    }
+
+    @Benchmark
+    public boolean deleteDir() {
+        return FileHelper.deleteDir(dir);
+    }
+}
@@ -0,0 +1,68 @@
+package com.wurq.dex.fixlibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DexHotfix#expandFieldArray} splicing patch elements in front of a {@code dexElements}
+ * array the size of a single dex app and of a large multidex app.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExpandFieldArrayBenchmark {
+
+    /**
+     * Shaped like DexPathList: a typed array field holding one element per dex.
+     */
+    static final class PathList {
+        Element[] dexElements;
+    }
+
+    static final class Element {
+    }
+
+    @Param({"1", "32"})
+    public int elementCount;
+
+    @Param({"1", "3"})
+    public int patchCount;
+
+    private PathList pathList;
+    private Element[] original;
+    private Object[] patchElements;
+
+    @Setup
+    public void setUp() {
+        original = new Element[elementCount];
+        for (int i = 0; i < elementCount; i++) {
+            original[i] = new Element();
+        }
+        patchElements = new Object[patchCount];
+        for (int i = 0; i < patchCount; i++) {
+            patchElements[i] = new Element();
+        }
+        pathList = new PathList();
+    }
+
+    @Benchmark
+    public Object[] expandFieldArray() throws Exception {
+        pathList.dexElements = original;
+        DexHotfix.expandFieldArray(pathList, "dexElements", patchElements);
+        return pathList.dexElements;
+    }
+}
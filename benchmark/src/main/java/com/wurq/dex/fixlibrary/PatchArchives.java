@@ -0,0 +1,183 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates patch archives shaped like the ones shipped to devices: a few large dex files next to
+ * many small resources, with content that deflates about as well as dex and xml do. Signing goes
+ * through the JDK's keytool and jarsigner so the archives are laid out exactly as release
+ * patches are.
+ */
+final class PatchArchives {
+
+    static final String KEY_ALIAS = "hotfix";
+
+    private static final String STORE_PASS = "benchmark";
+
+    private static final String[] WORDS = {
+            "Landroid/app/Activity;", "Ljava/lang/String;", "invoke-virtual", "const/4",
+            "move-result-object", "iget-object", "<init>", "onCreate", "return-void",
+            "Lcom/wurq/dex/hotfix/", "android:layout_width", "match_parent", "wrap_content",
+    };
+
+    private PatchArchives() {
+    }
+
+    static File createDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "bench");
+        dir.delete();
+        if (!dir.mkdirs()) {
+            throw new IOException("can not create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Writes an archive with {@code dexCount} dex files of {@code dexSize} bytes named
+     * {@code classes.dex}, {@code classes2.dex} ... and {@code resourceCount} resources of a
+     * few KB each.
+     */
+    static File createPatch(File dir, String name, int dexCount, int dexSize, int resourceCount)
+            throws IOException {
+        File patch = new File(dir, name);
+        Random random = new Random(dexCount * 31L + dexSize + resourceCount);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(patch));
+        try {
+            for (int i = 1; i <= dexCount; i++) {
+                out.putNextEntry(new ZipEntry(i == 1 ? "classes.dex" : "classes" + i + ".dex"));
+                out.write(content(random, dexSize));
+                out.closeEntry();
+            }
+            for (int i = 0; i < resourceCount; i++) {
+                out.putNextEntry(new ZipEntry("res/layout/layout_" + i + ".xml"));
+                out.write(content(random, 1024 + random.nextInt(4096)));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return patch;
+    }
+
+    /**
+     * Writes {@code count} files of {@code size} bytes spread over nested directories, the way an
+     * extracted patch and its optdex output look on disk.
+     */
+    static void createTree(File dir, int count, int size) throws IOException {
+        byte[] data = content(new Random(count), size);
+        for (int i = 0; i < count; i++) {
+            File parent = new File(dir, "d" + (i % 8) + File.separator + "e" + (i % 3));
+            parent.mkdirs();
+            write(new File(parent, "f" + i), data);
+        }
+    }
+
+    static File createFile(File dir, String name, int size) throws IOException {
+        File file = new File(dir, name);
+        write(file, content(new Random(size), size));
+        return file;
+    }
+
+    /**
+     * Creates a key store holding a self signed RSA key under {@link #KEY_ALIAS}.
+     */
+    static File createKeyStore(File dir) throws IOException {
+        File keyStore = new File(dir, "benchmark.keystore");
+        run(tool("keytool"), "-genkeypair", "-alias", KEY_ALIAS, "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "365", "-dname", "CN=hotfix benchmark",
+                "-storetype", "JKS", "-keystore", keyStore.getPath(),
+                "-storepass", STORE_PASS, "-keypass", STORE_PASS);
+        return keyStore;
+    }
+
+    static void sign(File archive, File keyStore) throws IOException {
+        run(tool("jarsigner"), "-keystore", keyStore.getPath(), "-storepass", STORE_PASS,
+                "-keypass", STORE_PASS, archive.getPath(), KEY_ALIAS);
+    }
+
+    /**
+     * @return the encoded certificate of the key in {@code keyStore}, what
+     * {@link Hotfix#getSignerCertificate} returns for the host apk.
+     */
+    static byte[] certificate(File keyStore) throws Exception {
+        return load(keyStore).getCertificate(KEY_ALIAS).getEncoded();
+    }
+
+    static PrivateKey privateKey(File keyStore) throws Exception {
+        return (PrivateKey) load(keyStore).getKey(KEY_ALIAS, STORE_PASS.toCharArray());
+    }
+
+    private static KeyStore load(File keyStore) throws Exception {
+        KeyStore store = KeyStore.getInstance("JKS");
+        InputStream in = new FileInputStream(keyStore);
+        try {
+            store.load(in, STORE_PASS.toCharArray());
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    private static byte[] content(Random random, int size) {
+        byte[] data = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            byte[] word;
+            if (random.nextInt(4) == 0) {
+                word = new byte[1 + random.nextInt(8)];
+                random.nextBytes(word);
+            } else {
+                word = WORDS[random.nextInt(WORDS.length)].getBytes();
+            }
+            int length = Math.min(word.length, size - pos);
+            System.arraycopy(word, 0, data, pos, length);
+            pos += length;
+        }
+        return data;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Locates a JDK tool; on Java 8 {@code java.home} is the jre directory inside the JDK.
+     */
+    private static String tool(String name) {
+        File home = new File(System.getProperty("java.home"));
+        File tool = new File(home, "bin" + File.separator + name);
+        if (!tool.exists()) {
+            tool = new File(home.getParentFile(), "bin" + File.separator + name);
+        }
+        return tool.exists() ? tool.getPath() : name;
+    }
+
+    private static void run(String... command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FileHelper.copyFile(process.getInputStream(), output);
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException(command[0] + " failed: " + output);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted running " + command[0]);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.wurq.dex.fixlibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code loadClass} of every class of an app after the hack dex and the patch have been loaded
+ * {@code reloads} times into the same class loader. {@code replaced} injects them the way
+ * {@link DexHotfix#loadPatch} does, each load taking the place of the previous one;
+ * {@code stacked} prepends every load with {@link DexHotfix#expandFieldArray}, as it was done
+ * before elements were tracked by owner. The first should stay flat as reloads go up, the second
+ * grows with the number of elements every miss has to probe.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+@Fork(1)
+public class ReloadLookupBenchmark {
+
+    /**
+     * Shaped like DexPathList: a typed array field holding one element per dex.
+     */
+    static final class PathList {
+        Element[] dexElements;
+    }
+
+    static final class Element {
+        final Map<String, byte[]> classes;
+
+        Element(Map<String, byte[]> classes) {
+            this.classes = classes;
+        }
+    }
+
+    @Param({"2000"})
+    public int classCount;
+
+    @Param({"10"})
+    public int patchedCount;
+
+    @Param({"1", "10", "50"})
+    public int reloads;
+
+    private List<String> names;
+    private PathList replacedList;
+    private PathList stackedList;
+
+    private ClassLoader replaced;
+    private ClassLoader stacked;
+
+    @Setup(Level.Trial)
+    public void reload() throws Exception {
+        names = new ArrayList<String>(classCount);
+        Map<String, byte[]> base = new HashMap<String, byte[]>();
+        for (int i = 0; i < classCount; i++) {
+            String name = "com.example.app.module" + (i % 50) + ".Class" + i;
+            names.add(name);
+            base.put(name, ClassLookupBenchmark.emptyClass(name));
+        }
+        Map<String, byte[]> patch = new HashMap<String, byte[]>();
+        for (int i = 0; i < patchedCount; i++) {
+            String name = names.get(i * classCount / patchedCount);
+            patch.put(name, ClassLookupBenchmark.emptyClass(name));
+        }
+        Map<String, byte[]> hack = Collections.singletonMap("AntilazyLoad",
+                ClassLookupBenchmark.emptyClass("AntilazyLoad"));
+        Collections.shuffle(names, new Random(classCount));
+
+        replacedList = new PathList();
+        replacedList.dexElements = new Element[]{new Element(base)};
+        stackedList = new PathList();
+        stackedList.dexElements = new Element[]{new Element(base)};
+        for (int i = 0; i < reloads; i++) {
+            DexHotfix.injectElements("bench", replacedList, DexHotfix.Owner.HACK,
+                    new Object[]{new Element(hack)});
+            DexHotfix.injectElements("bench", replacedList, DexHotfix.Owner.PATCH,
+                    new Object[]{new Element(patch)});
+            DexHotfix.expandFieldArray(stackedList, "dexElements",
+                    new Object[]{new Element(hack)});
+            DexHotfix.expandFieldArray(stackedList, "dexElements",
+                    new Object[]{new Element(patch)});
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newLoaders() {
+        ClassLoader parent = ReloadLookupBenchmark.class.getClassLoader().getParent();
+        replaced = new ClassLookupBenchmark.ElementLoader(parent, classesOf(replacedList));
+        stacked = new ClassLookupBenchmark.ElementLoader(parent, classesOf(stackedList));
+    }
+
+    @Benchmark
+    public int replaced() throws ClassNotFoundException {
+        return loadAll(replaced);
+    }
+
+    @Benchmark
+    public int stacked() throws ClassNotFoundException {
+        return loadAll(stacked);
+    }
+
+    private int loadAll(ClassLoader loader) throws ClassNotFoundException {
+        int hash = 0;
+        for (String name : names) {
+            hash += loader.loadClass(name).hashCode();
+        }
+        return hash;
+    }
+
+    private static List<Map<String, byte[]>> classesOf(PathList pathList) {
+        List<Map<String, byte[]>> elements = new ArrayList<Map<String, byte[]>>();
+        for (Element element : pathList.dexElements) {
+            elements.add(element.classes);
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,109 @@
+package com.wurq.dex.fixlibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signature check of a jarsigner signed patch: {@link PatchVerifier} on one thread, which is the
+ * JarFile loop the library started with, and on several, against {@link PatchExtractor} checking
+ * the signature while it extracts, and against the same patch checked through
+ * {@link SignedDigests} instead of its jar signature.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SignVerifyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SignedPatch {
+
+        @Param({"1", "3"})
+        public int dexCount;
+
+        File dir;
+        File patch;
+        File digestsPatch;
+        PublicKey key;
+        File out;
+        byte[] cert;
+        FileHelper.EntryFilter dexFilter;
+
+        @Setup
+        public void setUp() throws Exception {
+            dir = PatchArchives.createDir("verify");
+            patch = PatchArchives.createPatch(dir, "patch.apk", dexCount, 4 * 1024 * 1024, 300);
+            File keyStore = PatchArchives.createKeyStore(dir);
+            PatchArchives.sign(patch, keyStore);
+            cert = PatchArchives.certificate(keyStore);
+            digestsPatch = new File(dir, "digests.apk");
+            SignedDigests.sign(patch, digestsPatch, PatchArchives.privateKey(keyStore));
+            key = CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(cert)).getPublicKey();
+            out = new File(dir, "out");
+            out.mkdirs();
+            dexFilter = FileHelper.glob("classes*.dex");
+            if (!PatchVerifier.verify(patch, cert, 1)) {
+                throw new IllegalStateException(patch + " did not verify");
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            FileHelper.deleteDir(dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Workers {
+
+        @Param({"1", "2", "4"})
+        public int threads;
+    }
+
+    @Benchmark
+    public boolean verify(SignedPatch signed, Workers workers) throws IOException {
+        return PatchVerifier.verify(signed.patch, signed.cert, workers.threads);
+    }
+
+    @Benchmark
+    public PatchExtractor.Result extractVerified(SignedPatch signed) throws IOException {
+        return PatchExtractor.extract(signed.patch, signed.out, signed.cert, signed.dexFilter);
+    }
+
+    @Benchmark
+    public List<File> extractSignedDigests(SignedPatch signed) throws IOException {
+        Map<String, String> expected = SignedDigests.verify(signed.digestsPatch, signed.key);
+        Map<String, String> digests = new HashMap<String, String>();
+        List<File> files = FileHelper.unZip(signed.digestsPatch, signed.out, signed.dexFilter, 1,
+                digests);
+        List<PatchManifest.Entry> entries = new ArrayList<PatchManifest.Entry>();
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            entries.add(new PatchManifest.Entry(digest.getKey(), 0, digest.getValue()));
+        }
+        SignedDigests.check(expected, entries);
+        return files;
+    }
+}
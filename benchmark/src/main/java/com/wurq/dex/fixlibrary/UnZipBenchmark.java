@@ -0,0 +1,81 @@
+package com.wurq.dex.fixlibrary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of a patch with a few 4 MB dex files and many small resources: the legacy
+ * {@link FileHelper#unZip(String, String)} writing every entry, the selective
+ * {@link FileHelper#unZip(File, File, FileHelper.EntryFilter, int)} on one and four threads, and
+ * the unsigned single pass of {@link PatchExtractor} that also hashes the archive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UnZipBenchmark {
+
+    private static final int DEX_SIZE = 4 * 1024 * 1024;
+
+    @Param({"1", "3"})
+    public int dexCount;
+
+    @Param({"50", "500"})
+    public int resourceCount;
+
+    private File dir;
+    private File patch;
+    private File out;
+    private FileHelper.EntryFilter dexFilter;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = PatchArchives.createDir("unzip");
+        patch = PatchArchives.createPatch(dir, "patch.apk", dexCount, DEX_SIZE, resourceCount);
+        out = new File(dir, "out");
+        out.mkdirs();
+        dexFilter = FileHelper.glob("classes*.dex");
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileHelper.deleteDir(dir);
+    }
+
+    @Benchmark
+    public void unZipAll() {
+        FileHelper.unZip(patch.getPath(), out.getPath() + File.separator);
+    }
+
+    @Benchmark
+    public List<File> unZipDex() throws IOException {
+        return FileHelper.unZip(patch, out, dexFilter, 1);
+    }
+
+    @Benchmark
+    public List<File> unZipDexParallel() throws IOException {
+        return FileHelper.unZip(patch, out, dexFilter, 4);
+    }
+
+    @Benchmark
+    public PatchExtractor.Result extractUnsigned() throws IOException {
+        return PatchExtractor.extract(patch, out, null, dexFilter);
+    }
+}
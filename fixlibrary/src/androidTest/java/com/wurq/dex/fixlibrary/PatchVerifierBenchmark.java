@@ -0,0 +1,54 @@
+package com.wurq.dex.fixlibrary;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Times {@link PatchVerifier} on the device with 1, 2, 4 and all cores. The test apk itself is
+ * the archive: it is v1 signed with the same certificate {@link Hotfix#getSignerCertificate}
+ * returns and has a few hundred entries, which is what a large patch looks like.
+ *
+ * Run with {@code ./gradlew :fixlibrary:connectedAndroidTest} and read the timings from logcat
+ * under the {@code PatchVerifierBenchmark} tag.
+ */
+public class PatchVerifierBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "PatchVerifierBenchmark";
+
+    private static final int ROUNDS = 5;
+
+    public void testVerifyScalesWithThreads() throws Exception {
+        File apk = new File(getContext().getPackageCodePath());
+        byte[] cert = Hotfix.getSignerCertificate(getContext());
+        assertNotNull(cert);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threads = {1, 2, 4, cores};
+
+        // warm up the inflater and the certificate parsing
+        assertTrue(PatchVerifier.verify(apk, cert, 1));
+
+        long single = 0;
+        for (int t : threads) {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = System.nanoTime();
+                assertTrue(PatchVerifier.verify(apk, cert, t));
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            if (t == 1) {
+                single = best;
+            }
+            Log.i(TAG, "threads=" + t + " best=" + best / 1000 + "us speedup="
+                    + String.format("%.2f", (double) single / best));
+        }
+    }
+
+    public void testMismatchFailsFast() throws Exception {
+        File apk = new File(getContext().getPackageCodePath());
+        assertFalse(PatchVerifier.verify(apk, new byte[] {1, 2, 3},
+                Runtime.getRuntime().availableProcessors()));
+    }
+}
@@ -0,0 +1,180 @@
+package com.wurq.dex.fixlibrary;
+
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The future behind {@link Hotfix#loadPatchAsync}. {@link #run} prepares the new patch on the
+ * executor and, if that finished before the deadline, loads it. A thread waiting in
+ * {@link #get} when the deadline passes takes over instead: it loads what was prepared on an
+ * earlier start and reports {@link Hotfix.Outcome#DEFERRED}, while the preparation goes on and
+ * stages the new patch for the next start. Nothing is loaded once the deadline has passed
+ * without a waiting thread: a preparation that ends late only reports
+ * {@link Hotfix.Outcome#DEFERRED}, or {@link Hotfix.Outcome#FAILED} with its error if the new
+ * patch was rejected.
+ *
+ * Whichever side gets to load first wins, the other one does nothing; patches are loaded into
+ * the class loader exactly once.
+ */
+abstract class AsyncInstall implements Future<Hotfix.Outcome>, Runnable {
+
+    private static final int PENDING = 0;
+    private static final int LOADING = 1;
+    private static final int DONE = 2;
+
+    private final long deadlineNanos;
+    private final InstallCallback callback;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private int state = PENDING;
+    private volatile Hotfix.Outcome outcome;
+
+    /**
+     * @param deadlineNanos {@link System#nanoTime} after which the new patch is left for the
+     *                      next start
+     */
+    AsyncInstall(long deadlineNanos, InstallCallback callback) {
+        this.deadlineNanos = deadlineNanos;
+        this.callback = callback;
+    }
+
+    /**
+     * Verifies, extracts and optimizes the new patch into the staging slot.
+     *
+     * @return false if there is a new patch and it could not be prepared
+     */
+    abstract boolean prepare() throws Exception;
+
+    /**
+     * Loads the prepared patch into the class loader.
+     *
+     * @param switchSlots false to load the active patch as it is, without promoting the staged
+     *                    one
+     * @return {@link Hotfix.Outcome#APPLIED}, {@link Hotfix.Outcome#NO_PATCH} or
+     * {@link Hotfix.Outcome#FAILED}
+     */
+    abstract Hotfix.Outcome load(boolean switchSlots);
+
+    @Override
+    public void run() {
+        Throwable error = null;
+        boolean prepared;
+        try {
+            prepared = prepare();
+        } catch (Exception e) {
+            Log.e(Hotfix.TAG, "prepare patch failed", e);
+            error = e;
+            prepared = false;
+        }
+        boolean late = System.nanoTime() - deadlineNanos >= 0;
+        if (!claim()) {
+            return;
+        }
+        if (late) {
+            //已经超时, 应用已经启动, 不能再注入; 暂存的补丁下次启动生效
+            finish(prepared ? Hotfix.Outcome.DEFERRED : Hotfix.Outcome.FAILED, error);
+            return;
+        }
+        loadAndFinish(true, prepared, error);
+    }
+
+    /**
+     * Waits for the outcome until the deadline. Past it, loads the patch of an earlier start on
+     * the calling thread and returns {@link Hotfix.Outcome#DEFERRED}, unless the preparation
+     * already ended late and reported its outcome without loading anything.
+     */
+    @Override
+    public Hotfix.Outcome get() throws InterruptedException {
+        long left = deadlineNanos - System.nanoTime();
+        if (left > 0 && done.await(left, TimeUnit.NANOSECONDS)) {
+            return outcome;
+        }
+        if (claim()) {
+            loadAndFinish(false, true, null);
+        }
+        done.await();
+        return outcome;
+    }
+
+    /**
+     * Same as {@link #get()} when {@code timeout} reaches past the deadline; an earlier timeout
+     * throws without taking over.
+     */
+    @Override
+    public Hotfix.Outcome get(long timeout, TimeUnit unit) throws InterruptedException,
+            TimeoutException {
+        long wait = unit.toNanos(timeout);
+        if (wait < deadlineNanos - System.nanoTime()) {
+            if (!done.await(wait, TimeUnit.NANOSECONDS)) {
+                throw new TimeoutException();
+            }
+            return outcome;
+        }
+        return get();
+    }
+
+    /**
+     * Not supported, the preparation runs to its end.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    private synchronized boolean claim() {
+        if (state != PENDING) {
+            return false;
+        }
+        state = LOADING;
+        return true;
+    }
+
+    /**
+     * Loads and reports the outcome: {@link Hotfix.Outcome#DEFERRED} when the staged patch is
+     * left for the next start, {@link Hotfix.Outcome#FAILED} when the preparation failed or
+     * {@link #load} threw, so a waiting {@link #get} always returns.
+     */
+    private void loadAndFinish(boolean switchSlots, boolean prepared, Throwable error) {
+        Hotfix.Outcome result;
+        try {
+            Hotfix.Outcome loaded = load(switchSlots);
+            if (!prepared) {
+                result = Hotfix.Outcome.FAILED;
+            } else if (!switchSlots) {
+                result = Hotfix.Outcome.DEFERRED;
+            } else {
+                result = loaded;
+            }
+        } catch (RuntimeException e) {
+            Log.e(Hotfix.TAG, "load patch failed", e);
+            result = Hotfix.Outcome.FAILED;
+            error = e;
+        }
+        finish(result, error);
+    }
+
+    private void finish(Hotfix.Outcome result, Throwable error) {
+        synchronized (this) {
+            state = DONE;
+        }
+        outcome = result;
+        done.countDown();
+        Log.i(Hotfix.TAG, "patch outcome " + result);
+        if (callback != null) {
+            callback.onOutcome(result, error);
+        }
+    }
+}
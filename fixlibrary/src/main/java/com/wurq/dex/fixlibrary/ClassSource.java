@@ -0,0 +1,24 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Classes of one patch dex, as seen by {@link IndexedPatchLoader}.
+ */
+interface ClassSource {
+
+    /**
+     * @return binary names ({@code com.example.Foo$Bar}) of every class this source defines
+     */
+    Collection<String> getClassNames() throws IOException;
+
+    /**
+     * Defines {@code name} from this source.
+     *
+     * @param definingLoader loader the class is defined in, which also resolves the classes it
+     *                       references
+     * @return the class, or null if this source does not define it
+     */
+    Class<?> loadClass(String name, ClassLoader definingLoader);
+}
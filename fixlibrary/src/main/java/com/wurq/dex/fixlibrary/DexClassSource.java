@@ -0,0 +1,44 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import dalvik.system.DexFile;
+
+/**
+ * {@link ClassSource} over an opened (and optimized) {@link DexFile}, of a dex or of an archive
+ * of uncompressed dex. The class names come from the dex files themselves through
+ * {@link DexReader}.
+ */
+final class DexClassSource implements ClassSource {
+
+    private final File file;
+    private final DexFile dexFile;
+
+    DexClassSource(File file, DexFile dexFile) {
+        this.file = file;
+        this.dexFile = dexFile;
+    }
+
+    @Override
+    public Collection<String> getClassNames() throws IOException {
+        List<String> names = new ArrayList<String>();
+        for (DexReader reader : DexReader.openAll(file)) {
+            names.addAll(reader.getClassNames());
+        }
+        return names;
+    }
+
+    @Override
+    public Class<?> loadClass(String name, ClassLoader definingLoader) {
+        return dexFile.loadClass(name, definingLoader);
+    }
+
+    @Override
+    public String toString() {
+        return dexFile.getName();
+    }
+}
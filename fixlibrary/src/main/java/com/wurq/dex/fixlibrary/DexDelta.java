@@ -0,0 +1,283 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Binary delta of a patched dex against the dex of the installed base apk.
+ *
+ * A delta patch carries {@code classes.dex.delta} (and {@code classesN.dex.delta}) instead of
+ * the full dex. The format is a header followed by a stream of copy and insert operations:
+ * <pre>
+ * "HFXDELTA" int version
+ * byte[32] sha256 of the base dex
+ * long target size, byte[32] sha256 of the target dex
+ * { byte COPY,   long base offset, int length
+ *   | byte INSERT, int length, byte[length] }*
+ * byte END
+ * </pre>
+ * {@link #apply} rebuilds the target streaming the operations, reading the base through a
+ * {@link RandomAccessFile} and a fixed size buffer, so memory stays bounded whatever the size of
+ * the dex. {@link #diff} is the generator for the build side; it holds both files in memory.
+ */
+public final class DexDelta {
+
+    public static final String SUFFIX = ".delta";
+
+    private static final byte[] MAGIC = {'H', 'F', 'X', 'D', 'E', 'L', 'T', 'A'};
+
+    private static final int VERSION = 1;
+
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_INSERT = 2;
+
+    private static final int DIGEST_LENGTH = 32;
+
+    /**
+     * Size of the blocks of the base that are indexed by {@link #diff}, also the shortest match
+     * it emits as a copy.
+     */
+    private static final int BLOCK = 16;
+
+    private static final int HASH_PRIME = 31;
+
+    private DexDelta() {
+    }
+
+    /**
+     * Rebuilds the target dex from {@code base} and a delta.
+     *
+     * @return the hex SHA-256 of the rebuilt dex
+     * @throws IOException if the delta was made against another base, is malformed, or the
+     *                     result does not have the expected size and digest. {@code target} is
+     *                     deleted in that case.
+     */
+    public static String apply(File base, InputStream delta, File target) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(delta));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic) || in.readInt() != VERSION) {
+            throw new IOException("not a dex delta");
+        }
+        byte[] baseDigest = new byte[DIGEST_LENGTH];
+        in.readFully(baseDigest);
+        long targetSize = in.readLong();
+        byte[] targetDigest = new byte[DIGEST_LENGTH];
+        in.readFully(targetDigest);
+
+        if (!FileHelper.toHex(baseDigest).equals(FileHelper.sha256(base))) {
+            throw new IOException("delta was not made against " + base);
+        }
+
+        MessageDigest digest = FileHelper.newSha256();
+        byte[] buffer = FileHelper.obtainBuffer();
+        boolean success = false;
+        RandomAccessFile baseFile = new RandomAccessFile(base, "r");
+        try {
+            OutputStream out = new DigestOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(target), FileHelper.BUFFER_SIZE), digest);
+            long written = 0;
+            try {
+                int op;
+                while ((op = in.readUnsignedByte()) != OP_END) {
+                    if (op == OP_COPY) {
+                        long offset = in.readLong();
+                        int length = in.readInt();
+                        if (offset < 0 || length < 0 || offset + length > baseFile.length()) {
+                            throw new IOException("copy out of base range: " + offset + "+" + length);
+                        }
+                        baseFile.seek(offset);
+                        for (int left = length; left > 0; ) {
+                            int read = baseFile.read(buffer, 0, Math.min(left, buffer.length));
+                            if (read == -1) {
+                                throw new EOFException("base ended at " + baseFile.getFilePointer());
+                            }
+                            out.write(buffer, 0, read);
+                            left -= read;
+                        }
+                        written += length;
+                    } else if (op == OP_INSERT) {
+                        int length = in.readInt();
+                        if (length < 0) {
+                            throw new IOException("bad insert length " + length);
+                        }
+                        for (int left = length; left > 0; ) {
+                            int read = in.read(buffer, 0, Math.min(left, buffer.length));
+                            if (read == -1) {
+                                throw new EOFException("delta ended inside an insert");
+                            }
+                            out.write(buffer, 0, read);
+                            left -= read;
+                        }
+                        written += length;
+                    } else {
+                        throw new IOException("unknown delta op " + op);
+                    }
+                    if (written > targetSize) {
+                        throw new IOException("delta writes past target size " + targetSize);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (written != targetSize || !Arrays.equals(targetDigest, digest.digest())) {
+                throw new IOException("rebuilt " + target + " does not match the delta digest");
+            }
+            success = true;
+            return FileHelper.toHex(targetDigest);
+        } finally {
+            FileHelper.recycleBuffer(buffer);
+            baseFile.close();
+            if (!success) {
+                target.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the delta turning {@code base} into {@code target}. Meant for the machine building
+     * patches: blocks of the base are indexed by a rolling hash, the target is scanned for them,
+     * and every match is extended as far as it goes in both directions.
+     */
+    public static void diff(File base, File target, File delta) throws IOException {
+        byte[] b = readFully(base);
+        byte[] t = readFully(target);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(delta), FileHelper.BUFFER_SIZE));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.write(sha256(b));
+            out.writeLong(t.length);
+            out.write(sha256(t));
+
+            int[] table = buildIndex(b);
+            int mask = table.length - 1;
+            int power = 1;
+            for (int k = 1; k < BLOCK; k++) {
+                power *= HASH_PRIME;
+            }
+
+            int literalStart = 0;
+            int i = 0;
+            int hash = t.length >= BLOCK ? hash(t, 0) : 0;
+            while (i + BLOCK <= t.length) {
+                int candidate = table[mix(hash) & mask];
+                if (candidate >= 0 && regionEquals(b, candidate, t, i, BLOCK)) {
+                    int start = i;
+                    int baseStart = candidate;
+                    while (start > literalStart && baseStart > 0 && t[start - 1] == b[baseStart - 1]) {
+                        start--;
+                        baseStart--;
+                    }
+                    int end = i + BLOCK;
+                    int baseEnd = candidate + BLOCK;
+                    while (end < t.length && baseEnd < b.length && t[end] == b[baseEnd]) {
+                        end++;
+                        baseEnd++;
+                    }
+                    writeInsert(out, t, literalStart, start - literalStart);
+                    out.writeByte(OP_COPY);
+                    out.writeLong(baseStart);
+                    out.writeInt(end - start);
+                    i = end;
+                    literalStart = end;
+                    if (i + BLOCK <= t.length) {
+                        hash = hash(t, i);
+                    }
+                } else {
+                    if (i + BLOCK < t.length) {
+                        hash = (hash - t[i] * power) * HASH_PRIME + t[i + BLOCK];
+                    }
+                    i++;
+                }
+            }
+            writeInsert(out, t, literalStart, t.length - literalStart);
+            out.writeByte(OP_END);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int[] buildIndex(byte[] base) {
+        int blocks = base.length / BLOCK;
+        int size = Integer.highestOneBit(Math.max(blocks, 1) * 2) * 2;
+        int[] table = new int[size];
+        Arrays.fill(table, -1);
+        for (int block = 0; block < blocks; block++) {
+            int slot = mix(hash(base, block * BLOCK)) & (size - 1);
+            if (table[slot] < 0) {
+                table[slot] = block * BLOCK;
+            }
+        }
+        return table;
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int hash = 0;
+        for (int k = 0; k < BLOCK; k++) {
+            hash = hash * HASH_PRIME + data[offset + k];
+        }
+        return hash;
+    }
+
+    private static int mix(int hash) {
+        return (hash * 0x9E3779B9) ^ (hash >>> 16);
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        if (aOffset + length > a.length || bOffset + length > b.length) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (a[aOffset + k] != b[bOffset + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInsert(DataOutputStream out, byte[] data, int offset, int length)
+            throws IOException {
+        if (length > 0) {
+            out.writeByte(OP_INSERT);
+            out.writeInt(length);
+            out.write(data, offset, length);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        MessageDigest digest = FileHelper.newSha256();
+        digest.update(data);
+        return digest.digest();
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to diff");
+        }
+        byte[] data = new byte[(int) length];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
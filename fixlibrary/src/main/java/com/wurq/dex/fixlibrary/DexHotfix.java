@@ -12,9 +12,12 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.zip.ZipFile;
 
 import dalvik.system.DexFile;
@@ -25,9 +28,35 @@ import dalvik.system.DexFile;
 public class DexHotfix {
     static final String TAG = "DexHotfix";
 
-    private static final String DEX_OPT_DIR = "optdex";
+    static final String DEX_OPT_DIR = "optdex";
+
+    /**
+     * Installer name reported to {@link HotfixMetrics} for {@link #loadPatchIndexed}.
+     */
+    private static final String INDEXED = "INDEXED";
+
+    /**
+     * What an injected group of dexElements is for. Each {@code DexPathList} holds at most one
+     * group per owner; injecting again replaces the group instead of stacking another one in
+     * front of it.
+     */
+    enum Owner {
+        /** hack.apk, 防止CLASS_ISPREVERIFIED */
+        HACK,
+        /** the dex files of the loaded patch */
+        PATCH
+    }
+
+    /**
+     * The elements injected into each {@code DexPathList}, by owner. Weak keys, a class loader
+     * that goes away takes its entry with it.
+     */
+    private static final Map<Object, Map<Owner, Object[]>> sOwnedElements =
+            new WeakHashMap<Object, Map<Owner, Object[]>>();
+
     /**
      * Locates a given field anywhere in the class inheritance hierarchy.
+     * Lookups are cached per runtime class by {@link ReflectionCache}.
      *
      * @param instance an object to search the field into.
      * @param name     field name
@@ -35,25 +64,13 @@ public class DexHotfix {
      * @throws NoSuchFieldException if the field cannot be located
      */
     static Field findField(Object instance, String name) throws NoSuchFieldException {
-        for (Class<?> clazz = instance.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
-            try {
-                Field field = clazz.getDeclaredField(name);
-
-                if (!field.isAccessible()) {
-                    field.setAccessible(true);
-                }
-
-                return field;
-            } catch (NoSuchFieldException e) {
-            }
-        }
-
-        throw new NoSuchFieldException("Field " + name + " not found in " + instance.getClass());
+        return ReflectionCache.findField(instance.getClass(), name);
     }
 
 
     /**
      * Locates a given method anywhere in the class inheritance hierarchy.
+     * Lookups are cached per runtime class by {@link ReflectionCache}.
      *
      * @param instance       an object to search the method into.
      * @param name           method name
@@ -63,100 +80,628 @@ public class DexHotfix {
      */
     static Method findMethod(Object instance, String name, Class<?>... parameterTypes)
             throws NoSuchMethodException {
-        for (Class<?> clazz = instance.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
-            try {
-                Method method = clazz.getDeclaredMethod(name, parameterTypes);
-
-                if (!method.isAccessible()) {
-                    method.setAccessible(true);
-                }
-
-                return method;
-            } catch (NoSuchMethodException e) {
-            }
-        }
-
-        throw new NoSuchMethodException("Method " + name + " with parameters " +
-                Arrays.asList(parameterTypes) + " not found in " + instance.getClass());
+        return ReflectionCache.findMethod(instance.getClass(), name, parameterTypes);
     }
 
     /**
      * Replace the value of a field containing a non null array, by a new array containing the
-     * elements of the original array plus the elements of extraElements.
+     * elements of extraElements followed by the elements of the original array.
      *
      * @param instance      the instance whose field is to be modified.
      * @param fieldName     the field to modify.
-     * @param extraElements elements to append at the end of the array.
+     * @param extraElements elements to put in front of the array.
      */
     static void expandFieldArray(Object instance, String fieldName,
                                  Object[] extraElements) throws NoSuchFieldException, IllegalArgumentException,
             IllegalAccessException {
+        replaceFieldArray(instance, fieldName, null, extraElements);
+    }
+
+    /**
+     * Same as {@link #expandFieldArray}, but the elements of the original array that are in
+     * staleElements (compared by identity) are left out.
+     *
+     * @param staleElements elements to drop, may be null
+     */
+    static void replaceFieldArray(Object instance, String fieldName, Object[] staleElements,
+                                  Object[] extraElements) throws NoSuchFieldException,
+            IllegalArgumentException, IllegalAccessException {
         Field jlrField = findField(instance, fieldName);
-        jlrField.setAccessible(true);
 
         Object[] original = (Object[]) jlrField.get(instance);
+        int kept = original.length;
+        if (staleElements != null && staleElements.length > 0) {
+            kept = 0;
+            for (Object element : original) {
+                if (!containsIdentical(staleElements, element)) {
+                    kept++;
+                }
+            }
+        }
         Object[] combined = (Object[]) Array.newInstance(
-                original.getClass().getComponentType(), original.length + extraElements.length);
+                original.getClass().getComponentType(), extraElements.length + kept);
 
         System.arraycopy(extraElements, 0, combined, 0, extraElements.length);
-        System.arraycopy(original, 0, combined, extraElements.length, original.length);
+        if (kept == original.length) {
+            System.arraycopy(original, 0, combined, extraElements.length, original.length);
+        } else {
+            int index = extraElements.length;
+            for (Object element : original) {
+                if (!containsIdentical(staleElements, element)) {
+                    combined[index++] = element;
+                }
+            }
+        }
 
         jlrField.set(instance, combined);
     }
 
+    private static boolean containsIdentical(Object[] elements, Object element) {
+        for (Object candidate : elements) {
+            if (candidate == element) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * 加载dex文件
      * @return
      * @throws SignVerifyPatchFailedException
      */
     public static boolean loadPatch(Context context, String dexPath) throws  SignVerifyPatchFailedException {
+        if (context == null) {
+            Log.e(TAG, "context is null");
+            return false;
+        }
+        return loadPatch(context, dexPath, new File(context.getFilesDir(), DEX_OPT_DIR),
+                Owner.PATCH);
+    }
 
+    /**
+     * 加载hack.apk, replacing the hack element of an earlier call.
+     * @return
+     */
+    static boolean loadHack(Context context, String dexPath) {
         if (context == null) {
             Log.e(TAG, "context is null");
             return false;
         }
-        if (!new File(dexPath).exists()) {
+        return loadPatch(context, dexPath, new File(context.getFilesDir(), DEX_OPT_DIR),
+                Owner.HACK);
+    }
+
+    /**
+     * 加载dex文件, 优化后的输出放在dexOptDir
+     * @return
+     */
+    static boolean loadPatch(Context context, String dexPath, File dexOptDir, Owner owner) {
+        if (dexPath == null || !new File(dexPath).exists()) {
             Log.e(TAG, dexPath + " is null");
             return false;
         }
+        List<File> dexFiles = new ArrayList<File>();
+        dexFiles.add(new File(dexPath));
+        return loadPatch(context, dexFiles, dexOptDir, owner);
+    }
 
-        File dexOptDir = new File(context.getFilesDir(), DEX_OPT_DIR);
-        ArrayList<File> extraDexPaths = new ArrayList<File>();
-        extraDexPaths.add(new File(dexPath));
+    /**
+     * 加载多个dex文件 (classes.dex, classes2.dex ... classesN.dex), 按顺序插入到dexElements最前面.
+     * The files are loaded concurrently and spliced into dexElements with a single array rebuild,
+     * which also drops the elements an earlier call injected for the same owner, so reloading
+     * does not make the lookup chain longer.
+     * @return
+     */
+    static boolean loadPatch(Context context, List<File> dexFiles, File dexOptDir, Owner owner) {
 
-        dexOptDir.mkdir();
+        if (context == null) {
+            Log.e(TAG, "context is null");
+            return false;
+        }
+        if (dexFiles.isEmpty()) {
+            Log.e(TAG, "no dex to load");
+            return false;
+        }
+        for (File dexFile : dexFiles) {
+            if (!dexFile.exists()) {
+                Log.e(TAG, dexFile + " is null");
+                return false;
+            }
+        }
+
+        dexOptDir.mkdirs();
         try {
-            installSecondaryDexes(context.getClassLoader(), dexOptDir, extraDexPaths);
+            ClassLoader loader = context.getClassLoader();
+            if (owner == Owner.PATCH) {
+                // 索引方式加载的旧补丁不再使用
+                removeIndexedPatchLoader(loader);
+            }
+            installSecondaryDexes(loader, dexOptDir, dexFiles, owner);
+            Log.d(TAG, "reflection lookups: " + ReflectionCache.getMissCount() + " resolved in "
+                    + ReflectionCache.getResolveNanos() / 1000 + "us, "
+                    + ReflectionCache.getHitCount() + " cached");
         } catch (Exception e) {
-            Log.e(TAG, "inject " + dexPath + " failed");
+            HotfixMetrics.count(HotfixMetrics.Counter.INJECT_FAILED);
+            Log.e(TAG, "inject " + dexFiles + " failed");
             e.printStackTrace();
             return false;
         }
         return true;
     }
 
-    private static void installSecondaryDexes(ClassLoader loader, File dexOptDir, List<File> files)
-            throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException,
-            InvocationTargetException, NoSuchMethodException, IOException, ClassNotFoundException, InstantiationException {
-        if (!files.isEmpty()) {
-            if (Build.VERSION.SDK_INT >= 24) {
-                V24.install(loader,files,dexOptDir);
-            } else if (Build.VERSION.SDK_INT >= 23) {
-                V23.install(loader, files, dexOptDir);
-            } else if (Build.VERSION.SDK_INT >= 19) {
-                V19.install(loader, files, dexOptDir);
-            } else if (Build.VERSION.SDK_INT >= 14) {
-                V14.install(loader, files, dexOptDir);
+    /**
+     * 按索引加载补丁: opens the patch dex files and installs an {@link IndexedPatchLoader} as the
+     * parent of the app's class loader, so only the classes the patch defines are looked up in
+     * it. A loader installed by an earlier call is replaced, not stacked, and patch elements a
+     * {@link #loadPatch} put in dexElements are removed. The dex files should have been optimized
+     * into dexOptDir by {@link #optimize} already.
+     * @return
+     */
+    static boolean loadPatchIndexed(Context context, List<File> dexFiles, File dexOptDir) {
+        if (context == null) {
+            Log.e(TAG, "context is null");
+            return false;
+        }
+        if (dexFiles.isEmpty()) {
+            Log.e(TAG, "no dex to load");
+            return false;
+        }
+
+        dexOptDir.mkdirs();
+        long start = System.nanoTime();
+        long bytes = 0;
+        List<ClassSource> sources = new ArrayList<ClassSource>(dexFiles.size());
+        try {
+            for (File dexFile : dexFiles) {
+                bytes += dexFile.length();
+                sources.add(new DexClassSource(dexFile, DexFile.loadDex(dexFile.getPath(),
+                        optimizedPathFor(dexFile, dexOptDir), 0)));
+            }
+        } catch (IOException e) {
+            HotfixMetrics.phase(HotfixMetrics.Phase.DEX_LOAD, start, bytes, INDEXED, false);
+            HotfixMetrics.count(HotfixMetrics.Counter.INJECT_FAILED);
+            Log.e(TAG, "open " + dexFiles + " failed", e);
+            return false;
+        }
+        HotfixMetrics.phase(HotfixMetrics.Phase.DEX_LOAD, start, bytes, INDEXED, true);
+
+        start = System.nanoTime();
+        boolean success = false;
+        try {
+            ClassLoader loader = context.getClassLoader();
+            ClassLoader parent = loader.getParent();
+            if (parent instanceof IndexedPatchLoader) {
+                parent = parent.getParent();
+            }
+            IndexedPatchLoader patchLoader = new IndexedPatchLoader(parent, sources, loader);
+            ReflectionCache.findField(ClassLoader.class, "parent").set(loader, patchLoader);
+            removeOwnedElements(loader, Owner.PATCH);
+            success = true;
+            Log.d(TAG, "routing " + patchLoader.getIndexSize() + " classes to " + dexFiles);
+        } catch (Exception e) {
+            HotfixMetrics.count(HotfixMetrics.Counter.INJECT_FAILED);
+            Log.e(TAG, "inject " + dexFiles + " failed", e);
+        } finally {
+            HotfixMetrics.phase(HotfixMetrics.Phase.INJECT, start, 0, INDEXED, success);
+        }
+        return success;
+    }
+
+    /**
+     * 预先dexopt: loads every dex once with its output in dexOptDir, at the same path the
+     * runtime's DexPathList would use, so the injection at the next start finds the optimized
+     * file up to date and only has to open it.
+     * @return
+     */
+    static boolean optimize(List<File> dexFiles, File dexOptDir) {
+        dexOptDir.mkdirs();
+        for (File dexFile : dexFiles) {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                DexFile dex = DexFile.loadDex(dexFile.getPath(),
+                        optimizedPathFor(dexFile, dexOptDir), 0);
+                dex.close();
+                success = true;
+            } catch (IOException e) {
+                Log.e(TAG, "dexopt " + dexFile + " failed", e);
+                return false;
+            } finally {
+                HotfixMetrics.phase(HotfixMetrics.Phase.DEX_OPT, start, dexFile.length(), null,
+                        success);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same naming as {@code dalvik.system.DexPathList#optimizedPathFor}.
+     */
+    private static String optimizedPathFor(File path, File optimizedDirectory) {
+        String fileName = path.getName();
+        if (!fileName.endsWith(".dex")) {
+            int lastDot = fileName.lastIndexOf(".");
+            if (lastDot < 0) {
+                fileName += ".dex";
             } else {
-                V4.install(loader, files);
+                fileName = fileName.substring(0, lastDot) + ".dex";
+            }
+        }
+        return new File(optimizedDirectory, fileName).getPath();
+    }
+
+    /**
+     * Creates the dexElements entries of one dex file.
+     */
+    private interface ElementFactory {
+        Object[] make(File file) throws Exception;
+    }
+
+    /**
+     * Runs {@code factory} for every file, all but the first on their own thread since loading
+     * and optimizing a dex is mostly independent work, and returns the elements in file order.
+     */
+    private static Object[] makeElementsConcurrently(String installer, List<File> files,
+                                                     final ElementFactory factory)
+            throws IllegalAccessException, InvocationTargetException, InstantiationException {
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        boolean success = false;
+        try {
+            Object[] elements = makeElements(files, factory);
+            success = true;
+            return elements;
+        } finally {
+            HotfixMetrics.phase(HotfixMetrics.Phase.DEX_LOAD, start, bytes, installer, success);
+        }
+    }
+
+    /**
+     * Puts {@code elements} in front of {@code dexPathList.dexElements}, in place of the elements
+     * injected for {@code owner} before.
+     */
+    static void injectElements(String installer, Object dexPathList, Owner owner,
+                               Object[] elements)
+            throws NoSuchFieldException, IllegalAccessException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            synchronized (sOwnedElements) {
+                Map<Owner, Object[]> owned = sOwnedElements.get(dexPathList);
+                if (owned == null) {
+                    owned = new EnumMap<Owner, Object[]>(Owner.class);
+                    sOwnedElements.put(dexPathList, owned);
+                }
+                replaceFieldArray(dexPathList, "dexElements", owned.get(owner), elements);
+                owned.put(owner, elements);
+            }
+            success = true;
+        } finally {
+            HotfixMetrics.phase(HotfixMetrics.Phase.INJECT, start, 0, installer, success);
+        }
+    }
+
+    /**
+     * Takes the elements injected for {@code owner} out of the dexElements of {@code loader}.
+     * The dex files stay open, classes already loaded from them still need them.
+     */
+    private static void removeOwnedElements(ClassLoader loader, Owner owner)
+            throws NoSuchFieldException, IllegalAccessException {
+        Object dexPathList = findField(loader, "pathList").get(loader);
+        synchronized (sOwnedElements) {
+            Map<Owner, Object[]> owned = sOwnedElements.get(dexPathList);
+            Object[] stale = owned != null ? owned.remove(owner) : null;
+            if (stale != null) {
+                replaceFieldArray(dexPathList, "dexElements", stale, new Object[0]);
             }
         }
     }
 
+    /**
+     * Undoes {@link #loadPatchIndexed}: the parent of {@code loader} goes back to the one the
+     * {@link IndexedPatchLoader} was put in front of.
+     */
+    private static void removeIndexedPatchLoader(ClassLoader loader)
+            throws NoSuchFieldException, IllegalAccessException {
+        ClassLoader parent = loader.getParent();
+        if (parent instanceof IndexedPatchLoader) {
+            ReflectionCache.findField(ClassLoader.class, "parent").set(loader,
+                    parent.getParent());
+        }
+    }
+
+    private static Object[] makeElements(List<File> files, final ElementFactory factory)
+            throws IllegalAccessException, InvocationTargetException, InstantiationException {
+        final Object[][] results = new Object[files.size()][];
+        final Throwable[] errors = new Throwable[files.size()];
+        Thread[] threads = new Thread[files.size()];
+        for (int i = 1; i < files.size(); i++) {
+            final int index = i;
+            final File file = files.get(i);
+            threads[i] = new Thread("hotfix-dexload-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = factory.make(file);
+                    } catch (Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        try {
+            results[0] = factory.make(files.get(0));
+        } catch (Throwable e) {
+            errors[0] = e;
+        }
+
+        int count = 0;
+        for (int i = 0; i < files.size(); i++) {
+            if (threads[i] != null) {
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        threads[i].join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Throwable error = errors[i];
+            if (error instanceof IllegalAccessException) {
+                throw (IllegalAccessException) error;
+            } else if (error instanceof InvocationTargetException) {
+                throw (InvocationTargetException) error;
+            } else if (error instanceof InstantiationException) {
+                throw (InstantiationException) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new InvocationTargetException(error, "load " + files.get(i) + " failed");
+            }
+            count += results[i].length;
+        }
+
+        Object[] elements = new Object[count];
+        int offset = 0;
+        for (Object[] result : results) {
+            System.arraycopy(result, 0, elements, offset, result.length);
+            offset += result.length;
+        }
+        return elements;
+    }
+
+    private static void installSecondaryDexes(ClassLoader loader, File dexOptDir, List<File> files,
+                                              Owner owner) throws Exception {
+        if (!files.isEmpty()) {
+            PrependStrategy installer = getPrependStrategy(loader);
+            if (installer == null) {
+                throw new IllegalStateException("no installer for SDK " + Build.VERSION.SDK_INT);
+            }
+            installer.install(loader, files, dexOptDir, owner);
+        }
+    }
+
+    /**
+     * @return true on Dalvik, which pre-verifies classes ({@code CLASS_ISPREVERIFIED}) and so
+     * needs hack.apk; false on ART, including ART chosen on KitKat
+     */
+    static boolean isDalvik() {
+        String version = System.getProperty("java.vm.version");
+        return version != null && (version.startsWith("0.") || version.startsWith("1."));
+    }
+
+    /**
+     * The patch dex files in front of {@code dexElements}, {@link Hotfix.InjectionMode#PREPEND}.
+     * One installer for each range of platform versions, which is supported on those versions
+     * when the members it reflects on are there.
+     */
+    abstract static class PrependStrategy implements InjectionStrategy {
+        private final String name;
+        private final int minSdk;
+        private final int maxSdk;
+
+        PrependStrategy(String name, int minSdk, int maxSdk) {
+            this.name = name;
+            this.minSdk = minSdk;
+            this.maxSdk = maxSdk;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isSupported(ClassLoader loader) {
+            if (Build.VERSION.SDK_INT < minSdk || Build.VERSION.SDK_INT > maxSdk) {
+                return false;
+            }
+            try {
+                check(loader);
+                return true;
+            } catch (Exception e) {
+                Log.w(TAG, name + " does not match this class loader", e);
+                return false;
+            }
+        }
+
+        @Override
+        public int getCost() {
+            return PREPEND_COST;
+        }
+
+        @Override
+        public boolean needsHackDex() {
+            return isDalvik();
+        }
+
+        @Override
+        public boolean inject(Context context, List<File> dexFiles, File dexOptDir) {
+            return loadPatch(context, dexFiles, dexOptDir, Owner.PATCH);
+        }
+
+        /**
+         * Resolves the members {@link #install} uses, throws if one is missing.
+         */
+        abstract void check(ClassLoader loader) throws Exception;
+
+        abstract void install(ClassLoader loader, List<File> files, File dexOptDir, Owner owner)
+                throws Exception;
+    }
+
+    private static final PrependStrategy[] PREPEND_STRATEGIES = {
+            new PrependStrategy("V24", 24, Integer.MAX_VALUE) {
+                @Override
+                void check(ClassLoader loader) throws Exception {
+                    V24.check(loader);
+                }
+
+                @Override
+                void install(ClassLoader loader, List<File> files, File dexOptDir, Owner owner)
+                        throws Exception {
+                    V24.install(loader, files, dexOptDir, owner);
+                }
+            },
+            new PrependStrategy("V23", 23, 23) {
+                @Override
+                void check(ClassLoader loader) throws Exception {
+                    V23.check(loader);
+                }
+
+                @Override
+                void install(ClassLoader loader, List<File> files, File dexOptDir, Owner owner)
+                        throws Exception {
+                    V23.install(loader, files, dexOptDir, owner);
+                }
+            },
+            new PrependStrategy("V19", 19, 22) {
+                @Override
+                void check(ClassLoader loader) throws Exception {
+                    V19.check(loader);
+                }
+
+                @Override
+                void install(ClassLoader loader, List<File> files, File dexOptDir, Owner owner)
+                        throws Exception {
+                    V19.install(loader, files, dexOptDir, owner);
+                }
+            },
+            new PrependStrategy("V14", 14, 18) {
+                @Override
+                void check(ClassLoader loader) throws Exception {
+                    V14.check(loader);
+                }
+
+                @Override
+                void install(ClassLoader loader, List<File> files, File dexOptDir, Owner owner)
+                        throws Exception {
+                    V14.install(loader, files, dexOptDir, owner);
+                }
+            },
+            new PrependStrategy("V4", 4, 13) {
+                @Override
+                void check(ClassLoader loader) throws Exception {
+                    V4.check(loader);
+                }
+
+                @Override
+                void install(ClassLoader loader, List<File> files, File dexOptDir, Owner owner)
+                        throws Exception {
+                    V4.install(loader, files);
+                }
+            }
+    };
+
+    /**
+     * {@link Hotfix.InjectionMode#INDEXED}, see {@link #loadPatchIndexed}.
+     */
+    static final InjectionStrategy INDEXED_STRATEGY = new InjectionStrategy() {
+        @Override
+        public String getName() {
+            return INDEXED;
+        }
+
+        @Override
+        public boolean isSupported(ClassLoader loader) {
+            try {
+                ReflectionCache.findField(ClassLoader.class, "parent");
+                return true;
+            } catch (NoSuchFieldException e) {
+                Log.w(TAG, INDEXED + " can not replace the parent class loader", e);
+                return false;
+            }
+        }
+
+        @Override
+        public int getCost() {
+            return INDEXED_COST;
+        }
+
+        @Override
+        public boolean needsHackDex() {
+            return isDalvik();
+        }
+
+        @Override
+        public boolean inject(Context context, List<File> dexFiles, File dexOptDir) {
+            return loadPatchIndexed(context, dexFiles, dexOptDir);
+        }
+    };
+
+    private static volatile PrependStrategy sPrependStrategy;
+
+    /**
+     * @return the built-in strategies, PREPEND installers first
+     */
+    static List<InjectionStrategy> getBuiltInStrategies() {
+        List<InjectionStrategy> strategies = new ArrayList<InjectionStrategy>();
+        Collections.addAll(strategies, PREPEND_STRATEGIES);
+        strategies.add(INDEXED_STRATEGY);
+        return strategies;
+    }
+
+    /**
+     * @return the PREPEND installer of this platform version, or null if the class loader does
+     * not have what it needs. Looked up once; hack.apk is always loaded with it.
+     */
+    static PrependStrategy getPrependStrategy(ClassLoader loader) {
+        PrependStrategy strategy = sPrependStrategy;
+        if (strategy == null) {
+            for (PrependStrategy candidate : PREPEND_STRATEGIES) {
+                if (candidate.isSupported(loader)) {
+                    sPrependStrategy = strategy = candidate;
+                    break;
+                }
+            }
+        }
+        return strategy;
+    }
+
     private static final class V24 {
 
-        private static void install(ClassLoader loader, List<File> additionalClassPathEntries,
-                                    File optimizedDirectory)
+        private static void check(ClassLoader loader) throws Exception {
+            Object dexPathList = findField(loader, "pathList").get(loader);
+            Field dexElement = findField(dexPathList, "dexElements");
+            findMethod(dexPathList, "loadDexFile", File.class, File.class, ClassLoader.class,
+                    dexElement.getType());
+            ReflectionCache.findConstructor(dexElement.getType().getComponentType(), File.class,
+                    boolean.class, File.class, DexFile.class);
+        }
+
+        private static void install(final ClassLoader loader, List<File> additionalClassPathEntries,
+                                    final File optimizedDirectory, Owner owner)
                 throws IllegalArgumentException, IllegalAccessException,
                 NoSuchFieldException, InvocationTargetException, NoSuchMethodException, InstantiationException, ClassNotFoundException {
 
@@ -164,34 +709,52 @@ public class DexHotfix {
             Object dexPathList = pathListField.get(loader);
             Field dexElement = findField(dexPathList, "dexElements");
             Class<?> elementType = dexElement.getType().getComponentType();
-            Method loadDex = findMethod(dexPathList, "loadDexFile", File.class, File.class, ClassLoader.class, dexElement.getType());
-            loadDex.setAccessible(true);
-
-            Object dex = loadDex.invoke(null, additionalClassPathEntries.get(0), optimizedDirectory, loader, dexElement.get(dexPathList));
-            Constructor<?> constructor = elementType.getConstructor(File.class, boolean.class, File.class, DexFile.class);
-            constructor.setAccessible(true);
-            Object element = constructor.newInstance(new File(""), false, additionalClassPathEntries.get(0), dex);
-
-            Object[] newEles = new Object[1];
-            newEles[0] = element;
-            expandFieldArray(dexPathList, "dexElements", newEles);
+            final Method loadDex = findMethod(dexPathList, "loadDexFile", File.class, File.class, ClassLoader.class, dexElement.getType());
+            final Constructor<?> constructor = ReflectionCache.findConstructor(elementType, File.class, boolean.class, File.class, DexFile.class);
+            final Object elements = dexElement.get(dexPathList);
+
+            Object[] newEles = makeElementsConcurrently("V24", additionalClassPathEntries, new ElementFactory() {
+                @Override
+                public Object[] make(File file) throws Exception {
+                    Object dex = loadDex.invoke(null, file, optimizedDirectory, loader, elements);
+                    return new Object[] {constructor.newInstance(new File(""), false, file, dex)};
+                }
+            });
+            injectElements("V24", dexPathList, owner, newEles);
         }
 
     }
 
     private static final class V23 {
 
+        private static void check(ClassLoader loader) throws Exception {
+            Object dexPathList = findField(loader, "pathList").get(loader);
+            findField(dexPathList, "dexElements");
+            findMethod(dexPathList, "makePathElements", List.class, File.class, List.class);
+        }
+
         private static void install(ClassLoader loader, List<File> additionalClassPathEntries,
-                                    File optimizedDirectory)
+                                    final File optimizedDirectory, Owner owner)
                 throws IllegalArgumentException, IllegalAccessException,
-                NoSuchFieldException, InvocationTargetException, NoSuchMethodException {
+                NoSuchFieldException, InvocationTargetException, NoSuchMethodException,
+                InstantiationException {
             Field pathListField = findField(loader, "pathList");
-            pathListField.setAccessible(true);
-            Object dexPathList = pathListField.get(loader);
-            ArrayList<IOException> suppressedExceptions = new ArrayList<IOException>();
-            expandFieldArray(dexPathList, "dexElements", makePathElements(dexPathList,
-                    new ArrayList<File>(additionalClassPathEntries), optimizedDirectory,
-                    suppressedExceptions));
+            final Object dexPathList = pathListField.get(loader);
+            final ArrayList<IOException> suppressedExceptions = new ArrayList<IOException>();
+            injectElements("V23", dexPathList, owner, makeElementsConcurrently("V23",
+                    additionalClassPathEntries, new ElementFactory() {
+                        @Override
+                        public Object[] make(File file) throws Exception {
+                            ArrayList<IOException> suppressed = new ArrayList<IOException>();
+                            Object[] elements = makePathElements(dexPathList,
+                                    new ArrayList<File>(Collections.singletonList(file)),
+                                    optimizedDirectory, suppressed);
+                            synchronized (suppressedExceptions) {
+                                suppressedExceptions.addAll(suppressed);
+                            }
+                            return elements;
+                        }
+                    }));
 
             if (suppressedExceptions.size() > 0) {
                 for (IOException e : suppressedExceptions) {
@@ -241,25 +804,44 @@ public class DexHotfix {
 
     private static final class V19 {
 
+        private static void check(ClassLoader loader) throws Exception {
+            Object dexPathList = findField(loader, "pathList").get(loader);
+            findField(dexPathList, "dexElements");
+            findMethod(dexPathList, "makeDexElements", ArrayList.class, File.class,
+                    ArrayList.class);
+        }
+
         private static void install(ClassLoader loader, List<File> additionalClassPathEntries,
-                                    File optimizedDirectory)
+                                    final File optimizedDirectory, Owner owner)
                 throws IllegalArgumentException, IllegalAccessException,
-                NoSuchFieldException, InvocationTargetException, NoSuchMethodException {
+                NoSuchFieldException, InvocationTargetException, NoSuchMethodException,
+                InstantiationException {
             Field pathListField = findField(loader, "pathList");
-            Object dexPathList = pathListField.get(loader);
-            ArrayList<IOException> suppressedExceptions = new ArrayList<IOException>();
-            expandFieldArray(dexPathList, "dexElements", makeDexElements(dexPathList,
-                    new ArrayList<File>(additionalClassPathEntries), optimizedDirectory,
-                    suppressedExceptions));
+            final Object dexPathList = pathListField.get(loader);
+            final ArrayList<IOException> suppressedExceptions = new ArrayList<IOException>();
+            injectElements("V19", dexPathList, owner, makeElementsConcurrently("V19",
+                    additionalClassPathEntries, new ElementFactory() {
+                        @Override
+                        public Object[] make(File file) throws Exception {
+                            ArrayList<IOException> suppressed = new ArrayList<IOException>();
+                            Object[] elements = makeDexElements(dexPathList,
+                                    new ArrayList<File>(Collections.singletonList(file)),
+                                    optimizedDirectory, suppressed);
+                            synchronized (suppressedExceptions) {
+                                suppressedExceptions.addAll(suppressed);
+                            }
+                            return elements;
+                        }
+                    }));
 
             if (suppressedExceptions.size() > 0) {
                 for (IOException e : suppressedExceptions) {
                     Log.w(TAG, "Exception in makeDexElement", e);
                 }
                 Field suppressedExceptionsField =
-                        findField(loader, "dexElementsSuppressedExceptions");
+                        findField(dexPathList, "dexElementsSuppressedExceptions");
                 IOException[] dexElementsSuppressedExceptions =
-                        (IOException[]) suppressedExceptionsField.get(loader);
+                        (IOException[]) suppressedExceptionsField.get(dexPathList);
 
                 if (dexElementsSuppressedExceptions == null) {
                     dexElementsSuppressedExceptions =
@@ -275,7 +857,7 @@ public class DexHotfix {
                     dexElementsSuppressedExceptions = combined;
                 }
 
-                suppressedExceptionsField.set(loader, dexElementsSuppressedExceptions);
+                suppressedExceptionsField.set(dexPathList, dexElementsSuppressedExceptions);
             }
         }
 
@@ -298,10 +880,17 @@ public class DexHotfix {
     }
 
     /**
-     * Installer for platform versions 4 to 13.
+     * Installer for platform versions 4 to 13. Below minSdk; its entries are not tracked by
+     * {@link Owner}, loading again stacks them.
      */
     private static final class V4 {
 
+        private static void check(ClassLoader loader) throws Exception {
+            for (String name : new String[]{"path", "mPaths", "mFiles", "mZips", "mDexs"}) {
+                findField(loader, name);
+            }
+        }
+
         private static void install(ClassLoader loader, List<File> additionalClassPathEntries)
                 throws IllegalArgumentException, IllegalAccessException,
                 NoSuchFieldException, IOException {
@@ -339,14 +928,28 @@ public class DexHotfix {
      */
     private static final class V14 {
 
+        private static void check(ClassLoader loader) throws Exception {
+            Object dexPathList = findField(loader, "pathList").get(loader);
+            findField(dexPathList, "dexElements");
+            findMethod(dexPathList, "makeDexElements", ArrayList.class, File.class);
+        }
+
         private static void install(ClassLoader loader, List<File> additionalClassPathEntries,
-                                    File optimizedDirectory)
+                                    final File optimizedDirectory, Owner owner)
                 throws IllegalArgumentException, IllegalAccessException,
-                NoSuchFieldException, InvocationTargetException, NoSuchMethodException {
+                NoSuchFieldException, InvocationTargetException, NoSuchMethodException,
+                InstantiationException {
             Field pathListField = findField(loader, "pathList");
-            Object dexPathList = pathListField.get(loader);
-            expandFieldArray(dexPathList, "dexElements", makeDexElements(dexPathList,
-                    new ArrayList<File>(additionalClassPathEntries), optimizedDirectory));
+            final Object dexPathList = pathListField.get(loader);
+            injectElements("V14", dexPathList, owner, makeElementsConcurrently("V14",
+                    additionalClassPathEntries, new ElementFactory() {
+                        @Override
+                        public Object[] make(File file) throws Exception {
+                            return makeDexElements(dexPathList,
+                                    new ArrayList<File>(Collections.singletonList(file)),
+                                    optimizedDirectory);
+                        }
+                    }));
         }
 
         /**
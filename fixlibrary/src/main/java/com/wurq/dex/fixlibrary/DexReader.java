@@ -0,0 +1,342 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Adler32;
+
+/**
+ * Reads a dex file without loading it: the header, the Adler-32 checksum and SHA-1 signature it
+ * carries, and the names of the classes it defines from {@code class_defs}, {@code type_ids} and
+ * {@code string_ids}. The file is memory mapped, so listing the classes of a patch only touches
+ * the pages those tables live in.
+ *
+ * {@link #checkHeader} is the cheap form meant for every start: it reads the 112 byte header
+ * and checks that it describes a dex of exactly the size of the file.
+ */
+public final class DexReader {
+
+    static final int HEADER_SIZE = 0x70;
+
+    private static final int ENDIAN_CONSTANT = 0x12345678;
+
+    private static final int CHECKSUM_OFFSET = 8;
+    private static final int SIGNATURE_OFFSET = 12;
+    private static final int SIGNATURE_LENGTH = 20;
+    private static final int FILE_SIZE_OFFSET = 32;
+    private static final int HEADER_SIZE_OFFSET = 36;
+    private static final int ENDIAN_TAG_OFFSET = 40;
+    private static final int STRING_IDS_OFFSET = 56;
+    private static final int TYPE_IDS_OFFSET = 64;
+    private static final int CLASS_DEFS_OFFSET = 96;
+
+    private static final int CLASS_DEF_SIZE = 32;
+
+    private final File file;
+    private final ByteBuffer buffer;
+
+    private DexReader(File file, ByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Maps {@code file} and checks its header, see {@link #checkHeader}.
+     *
+     * @throws IOException if the file can not be read or is not a dex
+     */
+    public static DexReader open(File file) throws IOException {
+        return open(file, 0, file.length());
+    }
+
+    /**
+     * Maps {@code length} bytes of {@code file} at {@code offset}, e.g. a dex stored
+     * uncompressed inside an archive, and checks its header.
+     */
+    static DexReader open(File file, long offset, long length) throws IOException {
+        if (length < HEADER_SIZE) {
+            throw new IOException(file + " is too short to be a dex");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer mapped;
+        try {
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } finally {
+            raf.close();
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        String problem = checkHeader(mapped, mapped.capacity());
+        if (problem != null) {
+            throw new IOException(file + ": " + problem);
+        }
+        return new DexReader(file, mapped);
+    }
+
+    /**
+     * @param file a dex, or an archive holding {@code classes.dex} ... {@code classesN.dex}
+     *             uncompressed
+     * @return a reader for every dex in {@code file}, in load order
+     * @throws IOException if a dex in the archive is compressed
+     */
+    static List<DexReader> openAll(File file) throws IOException {
+        List<DexReader> readers = new ArrayList<DexReader>();
+        if (file.getName().endsWith(".dex")) {
+            readers.add(open(file));
+            return readers;
+        }
+        List<ZipLayout.Entry> dexEntries = new ArrayList<ZipLayout.Entry>();
+        for (ZipLayout.Entry entry : ZipLayout.read(file)) {
+            if (PatchStore.dexIndex(entry.name) > 0) {
+                if (!entry.isStoredAndAligned(1)) {
+                    throw new IOException(entry.name + " in " + file + " is compressed");
+                }
+                dexEntries.add(entry);
+            }
+        }
+        Collections.sort(dexEntries, new Comparator<ZipLayout.Entry>() {
+            @Override
+            public int compare(ZipLayout.Entry lhs, ZipLayout.Entry rhs) {
+                return PatchStore.dexIndex(lhs.name) - PatchStore.dexIndex(rhs.name);
+            }
+        });
+        for (ZipLayout.Entry entry : dexEntries) {
+            readers.add(open(file, entry.dataOffset, entry.size));
+        }
+        return readers;
+    }
+
+    /**
+     * Reads only the header of {@code file}.
+     *
+     * @return null if it has the dex magic, little endian tag and a header size and file size
+     * that match the file, otherwise what is wrong with it
+     */
+    public static String checkHeader(File file) {
+        byte[] header = new byte[HEADER_SIZE];
+        long length;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            length = in.getChannel().size();
+            int read = 0;
+            while (read < HEADER_SIZE) {
+                int n = in.read(header, read, HEADER_SIZE - read);
+                if (n == -1) {
+                    return "too short to be a dex";
+                }
+                read += n;
+            }
+        } catch (IOException e) {
+            return e.toString();
+        } finally {
+            FileHelper.closeQuietly(in);
+        }
+        return checkHeader(ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN), length);
+    }
+
+    private static String checkHeader(ByteBuffer header, long length) {
+        if (header.get(0) != 'd' || header.get(1) != 'e' || header.get(2) != 'x'
+                || header.get(3) != '\n' || !isDigit(header.get(4)) || !isDigit(header.get(5))
+                || !isDigit(header.get(6)) || header.get(7) != 0) {
+            return "bad dex magic";
+        }
+        if (header.getInt(ENDIAN_TAG_OFFSET) != ENDIAN_CONSTANT) {
+            return "not a little endian dex";
+        }
+        if (header.getInt(HEADER_SIZE_OFFSET) != HEADER_SIZE) {
+            return "unexpected header size " + header.getInt(HEADER_SIZE_OFFSET);
+        }
+        long fileSize = header.getInt(FILE_SIZE_OFFSET) & 0xffffffffL;
+        if (fileSize != length) {
+            return "header says " + fileSize + " bytes, file has " + length;
+        }
+        return null;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * @return the format version, e.g. {@code 035}
+     */
+    public String getVersion() {
+        return new String(new char[]{
+                (char) buffer.get(4), (char) buffer.get(5), (char) buffer.get(6)});
+    }
+
+    public int getFileSize() {
+        return buffer.getInt(FILE_SIZE_OFFSET);
+    }
+
+    /**
+     * @return the Adler-32 checksum stored in the header
+     */
+    public long getChecksum() {
+        return buffer.getInt(CHECKSUM_OFFSET) & 0xffffffffL;
+    }
+
+    /**
+     * @return the SHA-1 signature stored in the header
+     */
+    public byte[] getSignature() {
+        byte[] signature = new byte[SIGNATURE_LENGTH];
+        ByteBuffer view = buffer.duplicate();
+        view.position(SIGNATURE_OFFSET);
+        view.get(signature);
+        return signature;
+    }
+
+    public int getStringIdsSize() {
+        return buffer.getInt(STRING_IDS_OFFSET);
+    }
+
+    public int getTypeIdsSize() {
+        return buffer.getInt(TYPE_IDS_OFFSET);
+    }
+
+    public int getClassDefsSize() {
+        return buffer.getInt(CLASS_DEFS_OFFSET);
+    }
+
+    /**
+     * @return true if the Adler-32 of everything after the checksum field matches the header
+     */
+    public boolean verifyChecksum() {
+        Adler32 adler = new Adler32();
+        ByteBuffer view = buffer.duplicate();
+        view.position(SIGNATURE_OFFSET);
+        byte[] chunk = FileHelper.obtainBuffer();
+        try {
+            while (view.hasRemaining()) {
+                int length = Math.min(chunk.length, view.remaining());
+                view.get(chunk, 0, length);
+                adler.update(chunk, 0, length);
+            }
+        } finally {
+            FileHelper.recycleBuffer(chunk);
+        }
+        return adler.getValue() == getChecksum();
+    }
+
+    /**
+     * @return true if the SHA-1 of everything after the signature field matches the header
+     */
+    public boolean verifySignature() {
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(SIGNATURE_OFFSET + SIGNATURE_LENGTH);
+        sha1.update(view);
+        return Arrays.equals(sha1.digest(), getSignature());
+    }
+
+    /**
+     * @return binary names ({@code com.example.Foo$Bar}) of the classes defined in this dex, in
+     * {@code class_defs} order
+     * @throws IOException if an index or offset points outside the file
+     */
+    public List<String> getClassNames() throws IOException {
+        int classDefsSize = getClassDefsSize();
+        int classDefsOff = buffer.getInt(CLASS_DEFS_OFFSET + 4);
+        int typeIdsSize = getTypeIdsSize();
+        int typeIdsOff = buffer.getInt(TYPE_IDS_OFFSET + 4);
+        int stringIdsSize = getStringIdsSize();
+        int stringIdsOff = buffer.getInt(STRING_IDS_OFFSET + 4);
+        checkTable("class_defs", classDefsOff, classDefsSize, CLASS_DEF_SIZE);
+        checkTable("type_ids", typeIdsOff, typeIdsSize, 4);
+        checkTable("string_ids", stringIdsOff, stringIdsSize, 4);
+
+        List<String> names = new ArrayList<String>(classDefsSize);
+        for (int i = 0; i < classDefsSize; i++) {
+            int typeIdx = buffer.getInt(classDefsOff + i * CLASS_DEF_SIZE);
+            if (typeIdx < 0 || typeIdx >= typeIdsSize) {
+                throw new IOException(file + ": class_def " + i + " has type " + typeIdx);
+            }
+            int stringIdx = buffer.getInt(typeIdsOff + typeIdx * 4);
+            if (stringIdx < 0 || stringIdx >= stringIdsSize) {
+                throw new IOException(file + ": type " + typeIdx + " has string " + stringIdx);
+            }
+            String descriptor = readString(buffer.getInt(stringIdsOff + stringIdx * 4));
+            if (descriptor.length() < 3 || descriptor.charAt(0) != 'L'
+                    || descriptor.charAt(descriptor.length() - 1) != ';') {
+                throw new IOException(file + ": class_def " + i + " is " + descriptor);
+            }
+            names.add(descriptor.substring(1, descriptor.length() - 1).replace('/', '.'));
+        }
+        return names;
+    }
+
+    private void checkTable(String name, int offset, int count, int itemSize) throws IOException {
+        if (count < 0 || (count > 0 && (offset < HEADER_SIZE
+                || (long) offset + (long) count * itemSize > buffer.capacity()))) {
+            throw new IOException(file + ": " + name + " out of range");
+        }
+    }
+
+    /**
+     * Decodes a string_data_item: a uleb128 length in UTF-16 units followed by MUTF-8 bytes.
+     */
+    private String readString(int offset) throws IOException {
+        if (offset < HEADER_SIZE || offset >= buffer.capacity()) {
+            throw new IOException(file + ": string data at " + offset);
+        }
+        try {
+            return readMutf8(offset);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + ": string data at " + offset + " runs past the end");
+        }
+    }
+
+    private String readMutf8(int offset) throws IOException {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        int utf16Size = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = view.get() & 0xff;
+            utf16Size |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        // 每个UTF-16单元至少占一个字节, 分配前先校验长度
+        if (utf16Size < 0 || utf16Size > view.remaining()) {
+            throw new IOException(file + ": string length " + (utf16Size & 0xffffffffL)
+                    + " at " + offset + " runs past the end");
+        }
+
+        char[] chars = new char[utf16Size];
+        for (int i = 0; i < utf16Size; i++) {
+            int a = view.get() & 0xff;
+            if (a < 0x80) {
+                chars[i] = (char) a;
+            } else if ((a & 0xe0) == 0xc0) {
+                chars[i] = (char) (((a & 0x1f) << 6) | (view.get() & 0x3f));
+            } else if ((a & 0xf0) == 0xe0) {
+                int b1 = view.get() & 0x3f;
+                int b2 = view.get() & 0x3f;
+                chars[i] = (char) (((a & 0x0f) << 12) | (b1 << 6) | b2);
+            } else {
+                throw new IOException(file + ": bad MUTF-8 at " + (view.position() - 1));
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -1,65 +1,205 @@
 package com.wurq.dex.fixlibrary;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 /**
  * Created by wurongqiu on 17/3/2.
  */
 public class FileHelper {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final ArrayList<SoftReference<byte[]>> sBufferPool =
+            new ArrayList<SoftReference<byte[]>>(MAX_POOLED_BUFFERS);
+
     public static void copyFile(ArrayList<String> paths, File dir) throws IOException {
         for (String path: paths) {
             File outFile = new File(dir, path.substring(path.lastIndexOf("/") + 1, path.length()));
             if (!outFile.exists()) {
-                InputStream in = new FileInputStream(path);
-                OutputStream out = new FileOutputStream(outFile);
-                copyFile(in, out);
-                in.close();
-                out.close();
+                copyFile(new File(path), outFile);
             }
         }
     }
 
+    /**
+     * Copies a file with {@link FileChannel#transferTo}, letting the kernel move the bytes
+     * instead of pulling them through a heap buffer.
+     */
+    public static void copyFile(File src, File dest) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        try {
+            FileOutputStream out = new FileOutputStream(dest);
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long position = 0;
+                while (position < size) {
+                    long transferred = inChannel.transferTo(position, size - position, outChannel);
+                    if (transferred <= 0) {
+                        throw new IOException("copy " + src + " stopped at " + position + "/" + size);
+                    }
+                    position += transferred;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
 
     public static String copyAsset(Context context, String assetName, File dir) throws IOException {
         File outFile = new File(dir, assetName);
         if (!outFile.exists()) {
+            //先写临时文件再改名, 中途退出不会留下不完整的文件
+            File tmpFile = new File(dir, assetName + ".tmp");
             AssetManager assetManager = context.getAssets();
-            InputStream in = assetManager.open(assetName);
-            OutputStream out = new FileOutputStream(outFile);
-            copyFile(in, out);
-            in.close();
-            out.close();
+            if (!copyUncompressedAsset(assetManager, assetName, tmpFile)) {
+                InputStream in = assetManager.open(assetName);
+                try {
+                    OutputStream out = new FileOutputStream(tmpFile);
+                    try {
+                        copyFile(in, out);
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            if (!tmpFile.renameTo(outFile)) {
+                tmpFile.delete();
+                throw new IOException("rename " + tmpFile + " to " + outFile + " failed");
+            }
         }
         return outFile.getAbsolutePath();
     }
 
-    private static void copyFile(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[1024];
-        int read;
-        while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
+    /**
+     * Assets stored uncompressed in the apk can be opened as a file descriptor range and copied
+     * channel to channel. Compressed assets can not, and are left to the stream copy.
+     *
+     * @return false if the asset is compressed
+     */
+    private static boolean copyUncompressedAsset(AssetManager assetManager, String assetName,
+                                                 File outFile) throws IOException {
+        AssetFileDescriptor fd;
+        try {
+            fd = assetManager.openFd(assetName);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            FileInputStream in = fd.createInputStream();
+            try {
+                FileOutputStream out = new FileOutputStream(outFile);
+                try {
+                    FileChannel inChannel = in.getChannel();
+                    FileChannel outChannel = out.getChannel();
+                    long start = fd.getStartOffset();
+                    long length = fd.getLength();
+                    long position = 0;
+                    while (position < length) {
+                        long transferred = inChannel.transferTo(start + position,
+                                length - position, outChannel);
+                        if (transferred <= 0) {
+                            throw new IOException("copy asset " + assetName + " stopped at "
+                                    + position + "/" + length);
+                        }
+                        position += transferred;
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            fd.close();
+        }
+        return true;
+    }
+
+    static void copyFile(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = obtainBuffer();
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            recycleBuffer(buffer);
         }
     }
 
     /**
-     *
-     * @return
+     * @return a {@link #BUFFER_SIZE} buffer, reused from earlier copies when possible so startup
+     * does not allocate a new one for every file. Hand it back with {@link #recycleBuffer}.
+     */
+    static byte[] obtainBuffer() {
+        synchronized (sBufferPool) {
+            for (int i = sBufferPool.size() - 1; i >= 0; i--) {
+                byte[] buffer = sBufferPool.remove(i).get();
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    static void recycleBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.add(new SoftReference<byte[]>(buffer));
+            }
+        }
+    }
+
+    /**
+     * Deletes a file, or a directory with everything in it.
+     * @return false if something could not be deleted, or could not be listed
      */
     public static boolean deleteDir(File dir) {
         if (dir.isDirectory()) {
             String[] children = dir.list();
+            if (children == null) {
+                // 无法读取目录, 比如权限或者I/O错误
+                return false;
+            }
             for (int i=0; i < children.length; i++) {
                 boolean success = deleteDir(new File(dir, children[i]));
                 if (!success) {
@@ -70,39 +210,270 @@ public class FileHelper {
         return dir.delete();
     }
 
+    /**
+     * @return bytes taken by a file, or by the files in a directory and its subdirectories
+     */
+    public static long sizeOf(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        File[] children = file.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        long size = 0;
+        for (File child : children) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
 
     public static void unZip(String unZipfileName, String desDir){
+        byte[] buf = obtainBuffer();
         try{
-            ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(new FileInputStream(unZipfileName)));
-            ZipEntry zipEntry;
-            FileOutputStream fileOut;
-            File file;
+            ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(new FileInputStream(unZipfileName), BUFFER_SIZE));
+            try {
+                ZipEntry zipEntry;
+                FileOutputStream fileOut;
+                File file;
 
-            byte[] buf = new byte[2048];
-            int readByte;
+                int readByte;
 
-            while((zipEntry = zipIn.getNextEntry()) != null){
-                file = new File(desDir + zipEntry.getName());
+                while((zipEntry = zipIn.getNextEntry()) != null){
+                    file = new File(desDir + zipEntry.getName());
 
-                if(zipEntry.isDirectory()){
-                    file.mkdirs();
-                }
-                else{
-                    File parent = file.getParentFile();
-                    if(!parent.exists()){
-                        parent.mkdirs();
+                    if(zipEntry.isDirectory()){
+                        file.mkdirs();
                     }
+                    else{
+                        File parent = file.getParentFile();
+                        if(!parent.exists()){
+                            parent.mkdirs();
+                        }
 
-                    fileOut = new FileOutputStream(file);
-                    while((readByte = zipIn.read(buf) ) > 0){
-                        fileOut.write(buf, 0, readByte );
+                        fileOut = new FileOutputStream(file);
+                        try {
+                            while((readByte = zipIn.read(buf) ) > 0){
+                                fileOut.write(buf, 0, readByte );
+                            }
+                        } finally {
+                            fileOut.close();
+                        }
                     }
-                    fileOut.close();
+                    zipIn.closeEntry();
                 }
-                zipIn.closeEntry();
+            } finally {
+                zipIn.close();
             }
         }catch(IOException ioe){
             ioe.printStackTrace();
+        } finally {
+            recycleBuffer(buf);
+        }
+    }
+
+    /**
+     * Decides which archive entries {@link #unZip(File, File, EntryFilter, int)} extracts.
+     */
+    public interface EntryFilter {
+        boolean accept(String name);
+    }
+
+    /**
+     * @param patterns entry names where {@code *} stands for any run of characters other than
+     *                 {@code /}, e.g. {@code classes*.dex} or {@code assets/*.png}.
+     * @return a filter accepting entries that match any of the patterns
+     */
+    public static EntryFilter glob(String... patterns) {
+        StringBuilder regex = new StringBuilder();
+        for (String pattern : patterns) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append("(?:");
+            int start = 0;
+            int star;
+            while ((star = pattern.indexOf('*', start)) != -1) {
+                if (star > start) {
+                    regex.append(Pattern.quote(pattern.substring(start, star)));
+                }
+                regex.append("[^/]*");
+                start = star + 1;
+            }
+            if (start < pattern.length()) {
+                regex.append(Pattern.quote(pattern.substring(start)));
+            }
+            regex.append(')');
+        }
+        final Pattern compiled = Pattern.compile(regex.toString());
+        return new EntryFilter() {
+            @Override
+            public boolean accept(String name) {
+                return compiled.matcher(name).matches();
+            }
+        };
+    }
+
+    /**
+     * Extracts only the entries accepted by {@code filter}, located through the central directory
+     * so nothing else is inflated, and inflates them on up to {@code threads} threads.
+     *
+     * @return the extracted files
+     */
+    public static List<File> unZip(File zipFile, File destDir, EntryFilter filter, int threads)
+            throws IOException {
+        return unZip(zipFile, destDir, filter, threads, null);
+    }
+
+    /**
+     * Same as {@link #unZip(File, File, EntryFilter, int)}; when {@code digests} is not null the
+     * SHA-256 of every extracted entry is computed on the way and put into it by entry name.
+     */
+    static List<File> unZip(File zipFile, final File destDir, EntryFilter filter, int threads,
+                            final Map<String, String> digests) throws IOException {
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            final String destPath = destDir.getCanonicalPath() + File.separator;
+            List<ZipEntry> selected = new ArrayList<ZipEntry>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && filter.accept(entry.getName())) {
+                    selected.add(entry);
+                }
+            }
+
+            List<File> files = new ArrayList<File>(selected.size());
+            if (threads < 2 || selected.size() < 2) {
+                for (ZipEntry entry : selected) {
+                    files.add(extractEntry(zip, entry, destDir, destPath, digests));
+                }
+                return files;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(threads, selected.size()));
+            try {
+                List<Future<File>> futures = new ArrayList<Future<File>>(selected.size());
+                for (final ZipEntry entry : selected) {
+                    futures.add(executor.submit(new Callable<File>() {
+                        @Override
+                        public File call() throws IOException {
+                            return extractEntry(zip, entry, destDir, destPath, digests);
+                        }
+                    }));
+                }
+                for (Future<File> future : futures) {
+                    files.add(future.get());
+                }
+                return files;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("unzip " + zipFile + " interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("unzip " + zipFile + " failed", cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            closeQuietly(zip);
+        }
+    }
+
+    private static File extractEntry(ZipFile zip, ZipEntry entry, File destDir, String destPath,
+                                     Map<String, String> digests) throws IOException {
+        File file = new File(destDir, entry.getName());
+        if (!file.getCanonicalPath().startsWith(destPath)) {
+            throw new IOException("entry " + entry.getName() + " escapes " + destDir);
+        }
+        File parent = file.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        MessageDigest digest = digests != null ? newSha256() : null;
+        byte[] buffer = obtainBuffer();
+        InputStream in = zip.getInputStream(entry);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (digest != null) {
+                        digest.update(buffer, 0, read);
+                    }
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+            recycleBuffer(buffer);
+        }
+        if (digests != null) {
+            synchronized (digests) {
+                digests.put(entry.getName(), toHex(digest.digest()));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @return the lower case hex SHA-256 of a file's content
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = newSha256();
+        InputStream in = new FileInputStream(file);
+        byte[] buffer = obtainBuffer();
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            recycleBuffer(buffer);
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = hex[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = hex[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    static void closeQuietly(ZipFile zipFile) {
+        if (zipFile != null) {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+            }
         }
     }
 }
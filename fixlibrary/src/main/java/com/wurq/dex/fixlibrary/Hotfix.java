@@ -1,25 +1,24 @@
 package com.wurq.dex.fixlibrary;
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.Signature;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.PublicKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Collections;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by wurongqiu on 17/3/2.
@@ -28,9 +27,106 @@ public class Hotfix {
 
     static final String TAG = "HotFix";
 
-    private static final String HOTFIX_DIR = "hotfix";
+    static final String HOTFIX_DIR = "hotfix";
 
-    private static final String HACK_DEX = "hack.apk";
+    static final String HACK_DEX = "hack.apk";
+
+    /**
+     * Directory of {@link PatchFetcher} downloads, next to {@link #HOTFIX_DIR} so a finished
+     * download is moved into the store with a rename.
+     */
+    static final String DOWNLOAD_DIR = "hotfix-download";
+
+    /**
+     * How long a background task waits for another thread or process to finish with the store,
+     * e.g. the preparation of a patch in another process, before it gives up.
+     */
+    private static final long BACKGROUND_LOCK_TIMEOUT_MS = 60 * 1000;
+
+    /**
+     * How the patch dex files are made visible to the app's class loader, the built-in
+     * {@link InjectionStrategy}s.
+     */
+    public enum InjectionMode {
+        /** patch dex elements in front of {@code DexPathList.dexElements} */
+        PREPEND,
+        /** a parent class loader that routes only the classes the patch defines to it */
+        INDEXED
+    }
+
+    /**
+     * How the signature of a patch is checked when signature checking is on.
+     */
+    public enum SignMode {
+        /** jar signature, every entry's certificate compared with the host certificate */
+        JAR,
+        /** one digest list signed with the app key, see {@link SignedDigests} */
+        SIGNED_DIGESTS
+    }
+
+    /**
+     * What a process started with, reported by {@link #loadPatchAsync}.
+     */
+    public enum Outcome {
+        /** a patch is loaded, the new one if there was one and it was ready in time */
+        APPLIED,
+        /**
+         * the new patch was not ready by the deadline and takes effect on the next start; the
+         * patch of an earlier start, if any, was loaded only if a thread was waiting in
+         * {@link Future#get()} at the deadline
+         */
+        DEFERRED,
+        /** there is no patch to load */
+        NO_PATCH,
+        /**
+         * the new patch was rejected or the patch could not be loaded; a patch of an earlier start
+         * may still be loaded
+         */
+        FAILED
+    }
+
+    private static volatile SignMode sSignMode = SignMode.JAR;
+
+    private static volatile byte[] sSignerCert;
+
+    /**
+     * Public key of {@link #sSignerCert}, set before it.
+     */
+    private static volatile PublicKey sSignerKey;
+
+    /**
+     * SHA-256 of {@link #sSignerCert}, set before it.
+     */
+    private static volatile String sSignerCertDigest;
+
+    private static volatile int sVerifyThreads = 1;
+
+    private static volatile FileHelper.EntryFilter sExtractFilter =
+            FileHelper.glob("classes*.dex", "classes*.dex" + DexDelta.SUFFIX);
+
+    private static volatile int sExtractThreads =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private static volatile boolean sDirectDexLoading = true;
+
+    private static volatile long sStartLockTimeoutMs = 2000;
+
+    private static volatile long sStorageBudget = StorageManager.DEFAULT_BUDGET;
+
+    /**
+     * The patch loaded into this process, whose native libraries {@link #loadLibrary} loads.
+     */
+    private static volatile PatchManifest sLoadedPatch;
+
+    /**
+     * Number of threads used to check the patch signature. With 1 (the default) the signature
+     * is checked while the patch is extracted, reading the archive once. With more, the entries
+     * are verified on that many threads before extraction, which costs an extra read of the
+     * archive but spreads the inflate work of large patches over several cores.
+     */
+    public static void setVerifyThreads(int threads) {
+        sVerifyThreads = Math.max(1, threads);
+    }
 
     public static void install(Context context) {
         ClassLoader loader;
@@ -50,150 +146,566 @@ public class Hotfix {
         File hotfixDir = new File(context.getFilesDir(), HOTFIX_DIR);
         hotfixDir.mkdir();
 
-        //防止CLASS_ISPREVERIFIED
+        //防止CLASS_ISPREVERIFIED, ART不需要
+        InjectionStrategy strategy = InjectionStrategies.select(loader);
+        if (strategy != null && !strategy.needsHackDex()) {
+            HotfixMetrics.count(HotfixMetrics.Counter.HACK_SKIPPED);
+            return;
+        }
         String dexPath = null;
-        try {
-            dexPath = FileHelper.copyAsset(context, HACK_DEX, hotfixDir);
-        } catch (IOException e) {
-            Log.e(TAG, "copy " + HACK_DEX + " failed");
-            e.printStackTrace();
+        File hackFile = new File(hotfixDir, HACK_DEX);
+        boolean reused = hackFile.exists();
+        if (reused) {
+            HotfixMetrics.count(HotfixMetrics.Counter.HACK_REUSED);
         }
-
-        try {
-            DexHotfix.loadPatch(context, dexPath);
-        }catch (SignVerifyPatchFailedException e){
-            e.printStackTrace();
+        long start = System.nanoTime();
+        //多进程同时启动时只有一个进程复制
+        StoreLock lock = StoreLock.get(new File(hotfixDir, StoreLock.STORE_LOCK));
+        if (reused || lock.lockExclusive(sStartLockTimeoutMs)) {
+            try {
+                dexPath = FileHelper.copyAsset(context, HACK_DEX, hotfixDir);
+            } catch (IOException e) {
+                Log.e(TAG, "copy " + HACK_DEX + " failed");
+                e.printStackTrace();
+            } finally {
+                if (!reused) {
+                    lock.unlockExclusive();
+                }
+            }
+        } else {
+            HotfixMetrics.count(HotfixMetrics.Counter.LOCK_TIMEOUT);
+            Log.w(TAG, "another process is still copying " + HACK_DEX);
         }
+        HotfixMetrics.phase(HotfixMetrics.Phase.HACK_COPY, start, hackFile.length(), null,
+                dexPath != null);
+
+        DexHotfix.loadHack(context, dexPath);
+    }
+
+    /**
+     * {@link SignMode#JAR} by default. With {@link SignMode#SIGNED_DIGESTS} patches must carry a
+     * digest list signed with the app key, made by {@link SignedDigests#sign}; checking it costs
+     * one signature verification plus hashing the entries that are extracted, instead of
+     * inflating every entry to get at its certificates.
+     */
+    public static void setSignMode(SignMode mode) {
+        sSignMode = mode;
+    }
+
+    /**
+     * Uses a built-in strategy whatever the costs. By default the cheapest supported
+     * {@link InjectionStrategy} is used, which is {@link InjectionMode#PREPEND} unless a cheaper
+     * one was added or PREPEND does not match the platform's class loader.
+     * {@link InjectionMode#INDEXED} keeps lookups of classes the patch does not touch from
+     * probing the patch dex first; hack.apk is still prepended by {@link #install} when it is
+     * needed.
+     *
+     * @param mode null to go by cost again
+     */
+    public static void setInjectionMode(InjectionMode mode) {
+        InjectionStrategies.setMode(mode);
+    }
+
+    /**
+     * Adds a strategy to choose from, before {@link #install}. It is used when it is supported
+     * and cheaper than the built-in strategies and the ones added before it.
+     */
+    public static void addInjectionStrategy(InjectionStrategy strategy) {
+        InjectionStrategies.add(strategy);
     }
 
+    /**
+     * Entries of a patch archive that are extracted, {@code classes*.dex} and their
+     * {@link DexDelta} form {@code classes*.dex.delta} by default. Everything
+     * else in the archive is never written to disk, and when the signature is not checked during
+     * extraction it is not even inflated. Native libraries ({@code lib/<abi>/*.so}) are not
+     * subject to the filter, see {@link #loadLibrary}.
+     */
+    public static void setExtractFilter(FileHelper.EntryFilter filter) {
+        sExtractFilter = filter;
+    }
+
+    /**
+     * Number of threads the selected entries are inflated on when the signature check does not
+     * already force a sequential pass over the archive.
+     */
+    public static void setExtractThreads(int threads) {
+        sExtractThreads = Math.max(1, threads);
+    }
+
+    /**
+     * True by default: a patch whose {@code classes*.dex} are stored uncompressed and aligned
+     * ({@code zip -0} then {@code zipalign 4}) is kept as an archive and its dex files are loaded
+     * from it, instead of being written out a second time. Other patches are extracted as before.
+     */
+    public static void setDirectDexLoading(boolean enabled) {
+        sDirectDexLoading = enabled;
+    }
+
+    /**
+     * How long a start waits, 2 seconds by default, for another process of the app that is
+     * switching slots or deleting old patches. After that the start loads the active patch
+     * read-only: a staged patch is left for a later start to switch to.
+     */
+    public static void setStartLockTimeout(long millis) {
+        sStartLockTimeoutMs = Math.max(0, millis);
+    }
+
+    /**
+     * Bytes the patch store may take, 32 MB by default. Patches no slot names are kept until
+     * then, so a patch that comes back is not extracted and optimized again; past it the least
+     * recently used ones are deleted in the background. The active and the staged patch count
+     * but are never deleted. 0 keeps only those two.
+     */
+    public static void setStorageBudget(long bytes) {
+        sStorageBudget = Math.max(0, bytes);
+    }
+
+    /**
+     * Loads the prepared patch and, if {@code patchPath} exists, prepares it in the background
+     * for the next start, see {@link #preparePatchInBackground}. A new patch never takes effect
+     * in the process that receives it: extracting and optimizing it would put that work on the
+     * startup path.
+     */
     public static void loadPatch(Context context, String patchPath, boolean bCheckPatchSign) {
-        if (bCheckPatchSign) {
-            boolean bSuccess = checkPatchSign(context,patchPath);
-            if(!bSuccess)
-                throw new  SignVerifyPatchFailedException("sign is not equal with main apk:" + patchPath);
-        }
+        loadPreparedPatch(context);
 
         //patch.apk
-        File patchFile = new File(patchPath);
+        if (new File(patchPath).exists()) {
+            preparePatchInBackground(context, patchPath, bCheckPatchSign);
+        }
+    }
 
-        //
-        File hotfixDir = new File(context.getFilesDir(), HOTFIX_DIR);
-        String hotfixDirPath = hotfixDir.getAbsolutePath() + File.separator;
+    /**
+     * 只加载已经准备好的补丁, 不处理新的补丁文件. Meant for {@code attachBaseContext} when new
+     * patches are handed to {@link #preparePatch} as they arrive: a staged patch is switched to
+     * with one rename, and all that is left to do on the main thread is to splice the already
+     * optimized dex into the class loader. Patches no longer in use are deleted in the background.
+     *
+     * Every process of the app may call this on start. The first to get the store lock switches
+     * slots; the others find the switch done, or give up waiting after
+     * {@link #setStartLockTimeout} and load the active patch as it is.
+     */
+    public static void loadPreparedPatch(Context context) {
+        loadPrepared(context, true);
+    }
 
-        if (patchFile.exists()) {
-            try {
-                //
-                for (File file: hotfixDir.listFiles()) {
-                    if (file.isDirectory()) {
-                        FileHelper.deleteDir(file);
-                        continue;
-                    }
-                    if (!file.getName().equals(HACK_DEX)) {
-                        file.delete();
-                    }
+    /**
+     * Runs what {@link #install} and {@link #loadPatch} do without blocking the calling thread:
+     * the new patch at {@code patchPath}, if any, is prepared on {@code executor}, and if that
+     * finishes within {@code deadlineMillis} it is loaded right away. Otherwise the process
+     * boots with what an earlier start prepared and the new patch takes effect on the next
+     * start.
+     *
+     * Meant for {@code attachBaseContext}: call {@link Future#get()} on the result there, which
+     * returns by the deadline (plus the time to load an already optimized patch). Nothing is
+     * loaded after the deadline, so without a {@code get()} call the process only gets the patch
+     * if the executor was done before the deadline.
+     *
+     * @param callback told the outcome, may be null
+     */
+    public static Future<Outcome> loadPatchAsync(Context context, String patchPath,
+                                                 final boolean bCheckPatchSign, Executor executor,
+                                                 long deadlineMillis, InstallCallback callback) {
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        final File patchFile = patchPath != null ? new File(patchPath) : null;
+        AsyncInstall task = new AsyncInstall(
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis), callback) {
+            @Override
+            boolean prepare() {
+                if (patchFile == null || !patchFile.exists()) {
+                    return true;
                 }
+                //另一个进程准备好之后会删除来源文件
+                return preparePatch(appContext, patchFile.getPath(), bCheckPatchSign)
+                        || !patchFile.exists();
+            }
 
-                //
-                ArrayList<String> fileList = new ArrayList<>();
-                fileList.add(patchPath);
-                FileHelper.copyFile(fileList, hotfixDir);
+            @Override
+            Outcome load(boolean switchSlots) {
+                install(appContext);
+                return loadPrepared(appContext, switchSlots);
+            }
+        };
+        executor.execute(task);
+        return task;
+    }
 
-                //解压HOTFIX_DIR下patch.apk
-                FileHelper.unZip(hotfixDirPath + patchFile.getName(), hotfixDirPath);
+    /**
+     * @param switchSlots false to load the active patch without promoting a staged one
+     */
+    private static Outcome loadPrepared(Context context, boolean switchSlots) {
+        final PatchStore store = newStore(context);
+        StoreLock lock = store.getLock(StoreLock.STORE_LOCK);
+        boolean promoted = false;
+        if (!switchSlots) {
+            //新补丁还没准备好, 暂存的补丁留到下次启动
+        } else if (lock.lockExclusive(sStartLockTimeoutMs)) {
+            try {
+                promoted = store.promoteStaging();
+            } finally {
+                lock.unlockExclusive();
+            }
+        } else {
+            HotfixMetrics.count(HotfixMetrics.Counter.LOCK_TIMEOUT);
+            Log.w(TAG, "patch store is busy, load the active patch without switching slots");
+        }
+        if (promoted) {
+            startBackground("hotfix-cleanup", new Runnable() {
+                @Override
+                public void run() {
+                    trimStore(store);
+                }
+            });
+        }
 
-                //删除来源patch.apk
-                patchFile.delete();
-            } catch (IOException e) {
-                e.printStackTrace();
+        //只读加载: 拿不到锁时不修改store, 直接加载当前补丁
+        boolean shared = lock.lockShared(sStartLockTimeoutMs);
+        if (!shared) {
+            HotfixMetrics.count(HotfixMetrics.Counter.LOCK_TIMEOUT);
+            Log.w(TAG, "patch store is busy, load the active patch read-only");
+        }
+        try {
+            return loadManifest(context, store, store.lookupSlot(PatchStore.ACTIVE_SLOT));
+        } finally {
+            if (shared) {
+                lock.unlockShared();
             }
         }
+    }
 
-        DexHotfix.loadPatch(context, hotfixDirPath + "classes.dex");
+    /**
+     * Evicts patches no slot names down to the storage budget, unless a patch is being prepared:
+     * its directory is in the store before a slot names it.
+     */
+    private static void trimStore(PatchStore store) {
+        StoreLock prepareLock = store.getLock(StoreLock.PREPARE_LOCK);
+        if (!prepareLock.lockExclusive(BACKGROUND_LOCK_TIMEOUT_MS)) {
+            HotfixMetrics.count(HotfixMetrics.Counter.LOCK_TIMEOUT);
+            return;
+        }
+        try {
+            StoreLock lock = store.getLock(StoreLock.STORE_LOCK);
+            if (!lock.lockExclusive(BACKGROUND_LOCK_TIMEOUT_MS)) {
+                HotfixMetrics.count(HotfixMetrics.Counter.LOCK_TIMEOUT);
+                return;
+            }
+            try {
+                new StorageManager(store, sStorageBudget).trim(getLoadedDigests());
+            } finally {
+                lock.unlockExclusive();
+            }
+        } finally {
+            prepareLock.unlockExclusive();
+        }
     }
 
-    private static WeakReference<byte[]> mReadBuffer;
+    private static List<String> getLoadedDigests() {
+        PatchManifest loaded = sLoadedPatch;
+        return loaded != null ? Collections.singletonList(loaded.patchDigest)
+                : Collections.<String>emptyList();
+    }
 
     /**
-     * 检查补丁包签名
-     * @param context
-     * @param dexPath
-     * @return
+     * 后台准备补丁: verifies and extracts the patch into the staging slot and runs dexopt on it
+     * while the app keeps running on the active patch. Once it is complete the staging pointer
+     * is switched to it, and the next start makes it active. Blocks for the whole preparation,
+     * call it off the main thread or use {@link #preparePatchInBackground}.
+     *
+     * Only one process prepares a patch at a time. When several processes are handed the same
+     * file, the first one prepares it and deletes it; the others wait for it and then find
+     * nothing left to do.
+     *
+     * @return true if the patch is ready for the next start, false if it failed or another
+     * process prepared it
+     * @throws SignVerifyPatchFailedException if bCheckPatchSign and the signature does not match
      */
-    private static boolean checkPatchSign(Context context, String dexPath){
+    public static boolean preparePatch(Context context, String patchPath, boolean bCheckPatchSign) {
+        File patchFile = new File(patchPath);
+        if (!patchFile.exists()) {
+            Log.e(TAG, patchPath + " is null");
+            return false;
+        }
+        PatchStore store = newStore(context);
+        StoreLock prepareLock = store.getLock(StoreLock.PREPARE_LOCK);
+        if (!prepareLock.lockExclusive(BACKGROUND_LOCK_TIMEOUT_MS)) {
+            HotfixMetrics.count(HotfixMetrics.Counter.LOCK_TIMEOUT);
+            Log.w(TAG, "another process is still preparing a patch, skip " + patchPath);
+            return false;
+        }
+        try {
+            if (!patchFile.exists()) {
+                Log.i(TAG, patchPath + " was prepared by another process");
+                return false;
+            }
+            return preparePatch(context, store, patchFile, bCheckPatchSign);
+        } finally {
+            prepareLock.unlockExclusive();
+        }
+    }
 
+    private static boolean preparePatch(Context context, PatchStore store, File patchFile,
+                                        boolean bCheckPatchSign) {
         try {
-            PackageInfo pi = context.getPackageManager().getPackageInfo(context.getPackageName(), PackageManager.GET_SIGNATURES);
-            if (null != pi) {
-                byte[] myCertBytes = CertificateFactory.getInstance("X.509")
-                        .generateCertificate(new ByteArrayInputStream(pi.signatures[0].toByteArray()))
-                        .getEncoded();
-
-                Signature mSignatures[] = null;
-                WeakReference<byte[]> readBufferRef;
-                byte[] readBuffer = null;
-                readBufferRef = mReadBuffer;
-                if (readBufferRef != null) {
-                    mReadBuffer = null;
-                    readBuffer = readBufferRef.get();
+            PatchManifest manifest = storePatch(context, store, patchFile, bCheckPatchSign);
+            if (!manifest.optimized) {
+                if (!DexHotfix.optimize(store.getDexFiles(manifest), store.getOptDir(manifest))) {
+                    HotfixMetrics.count(HotfixMetrics.Counter.STORE_FAILED);
+                    return false;
                 }
-                if (readBuffer == null) {
-                    readBuffer = new byte[8192];
-                    readBufferRef = new WeakReference<byte[]>(readBuffer);
+                manifest = store.markOptimized(manifest);
+            } else {
+                HotfixMetrics.count(HotfixMetrics.Counter.DEXOPT_SKIPPED);
+            }
+            StoreLock lock = store.getLock(StoreLock.STORE_LOCK);
+            if (!lock.lockExclusive(BACKGROUND_LOCK_TIMEOUT_MS)) {
+                HotfixMetrics.count(HotfixMetrics.Counter.LOCK_TIMEOUT);
+                throw new IOException("patch store stayed busy, " + manifest.patchDigest
+                        + " is not staged");
+            }
+            try {
+                if (manifest.patchDigest.equals(store.readSlot(PatchStore.ACTIVE_SLOT))) {
+                    store.clearSlot(PatchStore.STAGING_SLOT);
+                } else {
+                    store.writeSlot(PatchStore.STAGING_SLOT, manifest.patchDigest);
                 }
+                new StorageManager(store, sStorageBudget).trim(getLoadedDigests());
+            } finally {
+                lock.unlockExclusive();
+            }
+
+            //删除来源patch.apk
+            patchFile.delete();
+            return true;
+        } catch (IOException e) {
+            HotfixMetrics.count(HotfixMetrics.Counter.STORE_FAILED);
+            Log.e(TAG, "prepare " + patchFile + " failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * Loads a native library like {@link System#loadLibrary}, from the loaded patch if it has
+     * the library. Only the libraries of the ABI this process runs with are taken from a patch,
+     * and each is extracted from the patch archive the first time it is loaded.
+     *
+     * A library that another patched library depends on must be loaded first, with this method
+     * too: the dynamic linker does not search the patch.
+     *
+     * @param libName the name as given to {@link System#loadLibrary}, e.g. {@code foo} for
+     *                {@code libfoo.so}
+     */
+    public static void loadLibrary(Context context, String libName) {
+        PatchManifest manifest = sLoadedPatch;
+        if (manifest != null && !manifest.getNativeLibraries().isEmpty()) {
+            String fileName = System.mapLibraryName(libName);
+            try {
+                File library = newStore(context).extractNativeLibrary(manifest, fileName);
+                if (library != null) {
+                    System.load(library.getAbsolutePath());
+                    return;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "extract patched " + fileName + " failed, load the installed one", e);
+            }
+        }
+        System.loadLibrary(libName);
+    }
+
+    /**
+     * Downloads a patch with {@link PatchFetcher} and prepares it for the next start. Nothing is
+     * downloaded if the patch is already the active or the staged one, and an interrupted
+     * download is resumed. Blocks, call it off the main thread.
+     *
+     * @param sha256 hex SHA-256 of the patch archive, from the server that announced it
+     * @param size   size of the patch archive, or -1 if unknown
+     * @return true if the patch is ready for the next start
+     * @throws IOException if the download failed; a later call resumes it
+     */
+    public static boolean fetchPatch(Context context, URL url, String sha256, long size,
+                                     boolean bCheckPatchSign) throws IOException {
+        PatchStore store = newStore(context);
+        if (sha256.equalsIgnoreCase(store.readSlot(PatchStore.STAGING_SLOT))
+                || sha256.equalsIgnoreCase(store.readSlot(PatchStore.ACTIVE_SLOT))) {
+            HotfixMetrics.count(HotfixMetrics.Counter.PATCH_REUSED);
+            return true;
+        }
+        File patchFile = new PatchFetcher(new File(context.getFilesDir(), DOWNLOAD_DIR))
+                .fetch(url, sha256, size);
+        return preparePatch(context, patchFile.getPath(), bCheckPatchSign);
+    }
 
-                JarFile jarFile = new JarFile(dexPath);
+    /**
+     * Runs {@link #preparePatch} on a background thread. A patch that fails to parse is
+     * logged and counted as {@link HotfixMetrics.Counter#STORE_FAILED}, it never takes the
+     * process down.
+     */
+    public static void preparePatchInBackground(Context context, final String patchPath,
+                                                final boolean bCheckPatchSign) {
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        startBackground("hotfix-prepare", new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    final List<JarEntry> toVerify = new ArrayList<>();
-                    Enumeration<JarEntry> i = jarFile.entries();
-                    while (i.hasMoreElements()) {
-                        final JarEntry entry = i.nextElement();
-                        if (entry.isDirectory()) continue;
-                        if (entry.getName().startsWith("META-INF/")) continue;
-                        toVerify.add(entry);
-                    }
-
-                    for (JarEntry entry : toVerify) {
-                        final Certificate[] entryCerts = loadCertificates(jarFile, entry, readBuffer);
-                        Certificate cert = entryCerts[0];
-                        if (null != cert) {
-                            if (!Arrays.equals(myCertBytes, cert.getEncoded())) {
-                                return false;
-                            }
-                        } else {
-                            return false;
-                        }
-                    }
-                    return true;
-                } finally {
-                    if (null != jarFile) {
-                        try {
-                            jarFile.close();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
+                    preparePatch(appContext, patchPath, bCheckPatchSign);
+                } catch (SignVerifyPatchFailedException e) {
+                    Log.e(TAG, "sign is not right: " + patchPath, e);
+                } catch (RuntimeException e) {
+                    //损坏的补丁不能让后台线程带崩整个进程
+                    HotfixMetrics.count(HotfixMetrics.Counter.STORE_FAILED);
+                    Log.e(TAG, "prepare " + patchPath + " failed", e);
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        });
+    }
+
+    private static void startBackground(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * @return binary names of the classes the active patch defines, read from its dex files
+     * without loading them; empty if no patch is active
+     */
+    public static List<String> getPatchedClasses(Context context) throws IOException {
+        PatchStore store = newStore(context);
+        StoreLock lock = store.getLock(StoreLock.STORE_LOCK);
+        boolean shared = lock.lockShared(sStartLockTimeoutMs);
+        try {
+            PatchManifest manifest = store.lookupSlot(PatchStore.ACTIVE_SLOT);
+            if (manifest == null) {
+                return Collections.emptyList();
+            }
+            return store.getClassNames(manifest);
+        } finally {
+            if (shared) {
+                lock.unlockShared();
+            }
         }
-        return false;
     }
 
-    private static Certificate[] loadCertificates(JarFile jarFile, JarEntry je,
-                                                  byte[] readBuffer) {
+    private static PatchStore newStore(Context context) {
+        ApplicationInfo info = context.getApplicationInfo();
+        File baseApk = info != null && info.sourceDir != null ? new File(info.sourceDir) : null;
+        return new PatchStore(context.getFilesDir(), baseApk, sExtractFilter, sExtractThreads,
+                sDirectDexLoading);
+    }
+
+    /**
+     * Puts the patch into the store, reusing an earlier extraction of the same content. With
+     * bCheckPatchSign a stored patch is only reused if the {@link VerdictCache} says it was
+     * signed with the current host certificate, so a patch seen again costs the same with and
+     * without the signature check.
+     */
+    private static PatchManifest storePatch(Context context, PatchStore store, File patchFile,
+                                            boolean bCheckPatchSign) throws IOException {
+        String patchPath = patchFile.getAbsolutePath();
+        long patchSize = patchFile.length();
+
+        byte[] hostCert = null;
+        if (bCheckPatchSign) {
+            hostCert = getSignerCertificate(context);
+            if (hostCert == null)
+                throw signRejected("can not read main apk sign:" + patchPath);
+        }
+
+        //相同内容的补丁已经解压过则直接复用, 只有大小相同时才需要计算摘要
+        if (store.hasPatchOfSize(patchSize)) {
+            long start = System.nanoTime();
+            String digest = null;
+            try {
+                digest = FileHelper.sha256(patchFile);
+            } finally {
+                HotfixMetrics.phase(HotfixMetrics.Phase.PATCH_HASH, start, patchSize, null,
+                        digest != null);
+            }
+            PatchManifest manifest = store.lookup(digest);
+            if (manifest != null && (!bCheckPatchSign || (manifest.signVerified
+                    && store.getVerdicts().isVerified(manifest.patchDigest, manifest.patchSize,
+                    sSignerCertDigest)))) {
+                HotfixMetrics.count(HotfixMetrics.Counter.PATCH_REUSED);
+                Log.i(TAG, "patch " + manifest.patchDigest + " already extracted");
+                return manifest;
+            }
+        }
+
+        boolean signedDigests = bCheckPatchSign && sSignMode == SignMode.SIGNED_DIGESTS;
+        //移到私有目录后校验和解压, 只有多线程校验时读两遍
+        long start = System.nanoTime();
+        boolean success = false;
         try {
-            InputStream is = new BufferedInputStream(jarFile.getInputStream(je));
-            while (is.read(readBuffer, 0, readBuffer.length) != -1) {
+            PatchManifest manifest = signedDigests
+                    ? store.installSignedDigests(patchFile, sSignerKey)
+                    : store.install(patchFile, hostCert, sVerifyThreads);
+            if (bCheckPatchSign) {
+                store.getVerdicts().record(manifest.patchDigest, manifest.patchSize,
+                        sSignerCertDigest);
             }
-            is.close();
-            return je != null ? je.getCertificates() : null;
-        } catch (IOException e) {
-            Log.e(TAG, "Exception reading " + je.getName() + " in "
-                    + jarFile.getName(), e);
-        } catch (RuntimeException e) {
-            Log.e(TAG, "Exception reading " + je.getName() + " in "
-                    + jarFile.getName(), e);
+            success = true;
+            return manifest;
+        } catch (SignVerifyPatchFailedException e) {
+            HotfixMetrics.count(HotfixMetrics.Counter.SIGN_REJECTED);
+            throw e;
+        } finally {
+            HotfixMetrics.phase(HotfixMetrics.Phase.EXTRACT, start, patchSize, null, success);
+        }
+    }
+
+    private static SignVerifyPatchFailedException signRejected(String msg) {
+        HotfixMetrics.count(HotfixMetrics.Counter.SIGN_REJECTED);
+        return new SignVerifyPatchFailedException(msg);
+    }
+
+    private static Outcome loadManifest(Context context, PatchStore store,
+                                        PatchManifest manifest) {
+        if (manifest == null) {
+            return Outcome.NO_PATCH;
+        }
+        if (!manifest.optimized) {
+            Log.i(TAG, "patch " + manifest.patchDigest + " is not optimized yet, dexopt on load");
+        }
+        InjectionStrategy strategy = InjectionStrategies.select(context.getClassLoader());
+        if (strategy == null || !InjectionStrategies.inject(strategy, context,
+                store.getDexFiles(manifest), store.getOptDir(manifest))) {
+            return Outcome.FAILED;
+        }
+        sLoadedPatch = manifest;
+        store.markUsed(manifest.patchDigest);
+        if (!manifest.getNativeLibraries().isEmpty()) {
+            File nativeDir = store.getNativeDir(manifest);
+            nativeDir.mkdirs();
+            NativeLibraries.injectDir(context.getClassLoader(), nativeDir);
+        }
+        return Outcome.APPLIED;
+    }
+
+    /**
+     * 主apk的签名证书, parsed once per process.
+     * @return encoded X.509 certificate, or null if it can not be read
+     */
+    static byte[] getSignerCertificate(Context context) {
+        byte[] cert = sSignerCert;
+        if (cert != null) {
+            return cert;
+        }
+        try {
+            PackageInfo pi = context.getPackageManager().getPackageInfo(context.getPackageName(), PackageManager.GET_SIGNATURES);
+            if (null != pi) {
+                Certificate certificate = CertificateFactory.getInstance("X.509")
+                        .generateCertificate(new ByteArrayInputStream(pi.signatures[0].toByteArray()));
+                cert = certificate.getEncoded();
+                MessageDigest digest = FileHelper.newSha256();
+                sSignerCertDigest = FileHelper.toHex(digest.digest(cert));
+                sSignerKey = certificate.getPublicKey();
+                sSignerCert = cert;
+                return cert;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
         return null;
     }
@@ -0,0 +1,23 @@
+package com.wurq.dex.fixlibrary;
+
+/**
+ * Receives the timing of every phase of the hotfix pipeline, see
+ * {@link HotfixMetrics#setListener}. Called synchronously on the thread that ran the phase,
+ * which during startup is the main thread, so implementations should only record the values.
+ */
+public interface HotfixListener {
+
+    /**
+     * @param phase         the phase that finished
+     * @param durationNanos wall time of the phase
+     * @param bytes         bytes the phase read or wrote, 0 if it does not move data
+     * @param sdkInt        {@code Build.VERSION.SDK_INT} of the device
+     * @param installer     the {@link InjectionStrategy#getName} ({@code V24}, {@code V23} ...,
+     *                      {@code INDEXED} or an added strategy's) for
+     *                      {@link HotfixMetrics.Phase#DEX_LOAD} and
+     *                      {@link HotfixMetrics.Phase#INJECT}, null for the other phases
+     * @param success       false if the phase failed
+     */
+    void onPhase(HotfixMetrics.Phase phase, long durationNanos, long bytes, int sdkInt,
+                 String installer, boolean success);
+}
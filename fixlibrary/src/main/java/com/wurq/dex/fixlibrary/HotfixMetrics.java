@@ -0,0 +1,97 @@
+package com.wurq.dex.fixlibrary;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Instrumentation of the hotfix pipeline: phase timings pushed to a {@link HotfixListener},
+ * and counters of failures and skipped work that can be read at any time. Without a listener a
+ * phase costs two {@link System#nanoTime} calls; counters are a single atomic increment.
+ */
+public final class HotfixMetrics {
+
+    public enum Phase {
+        /** downloading a patch with {@link PatchFetcher}, bytes are those received */
+        FETCH,
+        /** copying hack.apk out of the assets */
+        HACK_COPY,
+        /** hashing an incoming patch to find an earlier extraction of it */
+        PATCH_HASH,
+        /** the parallel signature check run before extraction */
+        SIGN_CHECK,
+        /** reading the patch archive and writing the selected entries into the store */
+        EXTRACT,
+        /** rebuilding dex files from {@link DexDelta} entries */
+        DELTA_APPLY,
+        /** dexopt of a prepared patch ahead of the next start */
+        DEX_OPT,
+        /** opening (and if needed optimizing) the dex files and creating their elements */
+        DEX_LOAD,
+        /** splicing the elements into DexPathList.dexElements */
+        INJECT
+    }
+
+    public enum Counter {
+        /** hack.apk already copied, the asset was not read */
+        HACK_REUSED,
+        /** the runtime does not pre-verify classes, hack.apk was not loaded */
+        HACK_SKIPPED,
+        /** incoming patch already in the store, nothing was extracted */
+        PATCH_REUSED,
+        /** prepared patch already optimized, dexopt skipped */
+        DEXOPT_SKIPPED,
+        /** base apk dex already extracted for a delta patch */
+        BASE_DEX_REUSED,
+        /** patch rejected because its signature did not match */
+        SIGN_REJECTED,
+        /** a patch could not be extracted or prepared */
+        STORE_FAILED,
+        /** dex files could not be injected into the class loader */
+        INJECT_FAILED,
+        /** a staged patch became the active one on start */
+        STAGING_PROMOTED,
+        /** a staged patch was not intact on start and was dropped */
+        STAGING_DISCARDED,
+        /** another thread or process held the store lock past the timeout */
+        LOCK_TIMEOUT,
+        /** an unused patch or base dex was deleted to keep the store within its budget */
+        EVICTED
+    }
+
+    private static final AtomicLongArray sCounts = new AtomicLongArray(Counter.values().length);
+
+    private static volatile HotfixListener sListener;
+
+    private HotfixMetrics() {
+    }
+
+    public static void setListener(HotfixListener listener) {
+        sListener = listener;
+    }
+
+    public static long getCount(Counter counter) {
+        return sCounts.get(counter.ordinal());
+    }
+
+    static void count(Counter counter) {
+        sCounts.incrementAndGet(counter.ordinal());
+    }
+
+    /**
+     * Reports a phase that started at {@code startNanos}, a {@link System#nanoTime} value.
+     */
+    static void phase(Phase phase, long startNanos, long bytes, String installer, boolean success) {
+        HotfixListener listener = sListener;
+        if (listener == null) {
+            return;
+        }
+        long duration = System.nanoTime() - startNanos;
+        try {
+            listener.onPhase(phase, duration, bytes, Build.VERSION.SDK_INT, installer, success);
+        } catch (RuntimeException e) {
+            Log.w(Hotfix.TAG, "listener failed on " + phase, e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按索引加载补丁类: installed as the parent of the app's class loader instead of putting the
+ * patch dex in front of {@code dexElements}. The names of the classes the patch defines are
+ * kept in a hash index; those are defined from the patch dex, everything else goes straight on
+ * to the original parent and then the app's own dex files, without ever probing the patch.
+ *
+ * Patched classes are defined in the app's class loader, so the classes they reference resolve
+ * exactly as before and later lookups of them are answered by that loader's loaded class table.
+ *
+ * The cost is that the runtime no longer sees a chain of loaders it knows, so on ART a lookup
+ * that the native class linker could walk on its own now calls into this loader. Which mode is
+ * faster depends on the app and device; measure both.
+ */
+final class IndexedPatchLoader extends ClassLoader {
+
+    private final Map<String, ClassSource> index;
+    private final Map<String, Class<?>> loaded = new HashMap<String, Class<?>>();
+    private final ClassLoader definingLoader;
+
+    /**
+     * @param parent         the parent of the app's class loader
+     * @param sources        patch dex files, earlier ones win when several define a class
+     * @param definingLoader the app's class loader, which patched classes are defined in
+     */
+    IndexedPatchLoader(ClassLoader parent, List<? extends ClassSource> sources,
+                       ClassLoader definingLoader) throws IOException {
+        super(parent);
+        this.definingLoader = definingLoader;
+        index = new HashMap<String, ClassSource>();
+        for (int i = sources.size() - 1; i >= 0; i--) {
+            ClassSource source = sources.get(i);
+            for (String name : source.getClassNames()) {
+                index.put(name, source);
+            }
+        }
+    }
+
+    /**
+     * @return number of classes routed to the patch
+     */
+    int getIndexSize() {
+        return index.size();
+    }
+
+    boolean isPatched(String name) {
+        return index.containsKey(name);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        ClassSource source = index.get(name);
+        if (source == null) {
+            return super.loadClass(name, resolve);
+        }
+        return loadPatched(name, source);
+    }
+
+    private synchronized Class<?> loadPatched(String name, ClassSource source)
+            throws ClassNotFoundException {
+        Class<?> clazz = loaded.get(name);
+        if (clazz == null) {
+            clazz = source.loadClass(name, definingLoader);
+            if (clazz == null) {
+                throw new ClassNotFoundException(name + " is indexed but not defined by " + source);
+            }
+            loaded.put(name, clazz);
+        }
+        return clazz;
+    }
+}
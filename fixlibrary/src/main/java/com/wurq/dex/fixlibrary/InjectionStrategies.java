@@ -0,0 +1,134 @@
+package com.wurq.dex.fixlibrary;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Chooses the {@link InjectionStrategy} of the process: of the built-in strategies and the ones
+ * added with {@link Hotfix#addInjectionStrategy}, the supported one with the lowest cost, unless
+ * {@link Hotfix#setInjectionMode} asked for a built-in one. The choice is made once and kept;
+ * adding a strategy or setting the mode makes the next call choose again.
+ */
+final class InjectionStrategies {
+
+    private static final List<InjectionStrategy> sAdded =
+            new CopyOnWriteArrayList<InjectionStrategy>();
+
+    private static volatile Hotfix.InjectionMode sMode;
+
+    private static volatile InjectionStrategy sSelected;
+
+    private InjectionStrategies() {
+    }
+
+    static void add(InjectionStrategy strategy) {
+        sAdded.add(strategy);
+        sSelected = null;
+    }
+
+    /**
+     * @param mode a built-in strategy to use whatever the costs, null to go by cost
+     */
+    static void setMode(Hotfix.InjectionMode mode) {
+        sMode = mode;
+        sSelected = null;
+    }
+
+    /**
+     * Forgets the added strategies, the mode and the choice.
+     */
+    static void reset() {
+        sAdded.clear();
+        setMode(null);
+    }
+
+    /**
+     * @return the strategy of this process, or null if none is supported
+     */
+    static InjectionStrategy select(ClassLoader loader) {
+        InjectionStrategy selected = sSelected;
+        if (selected != null) {
+            return selected;
+        }
+        synchronized (InjectionStrategies.class) {
+            if (sSelected == null) {
+                sSelected = choose(loader, candidates(sMode));
+            }
+            return sSelected;
+        }
+    }
+
+    private static List<InjectionStrategy> candidates(Hotfix.InjectionMode mode) {
+        List<InjectionStrategy> candidates = new ArrayList<InjectionStrategy>();
+        for (InjectionStrategy strategy : DexHotfix.getBuiltInStrategies()) {
+            boolean prepend = strategy instanceof DexHotfix.PrependStrategy;
+            if (mode == null || (mode == Hotfix.InjectionMode.PREPEND) == prepend) {
+                candidates.add(strategy);
+            }
+        }
+        if (mode == null) {
+            candidates.addAll(sAdded);
+        }
+        return candidates;
+    }
+
+    private static InjectionStrategy choose(ClassLoader loader,
+                                            List<InjectionStrategy> candidates) {
+        // 稳定排序, 同样的开销内置的优先
+        Collections.sort(candidates, new Comparator<InjectionStrategy>() {
+            @Override
+            public int compare(InjectionStrategy a, InjectionStrategy b) {
+                return a.getCost() < b.getCost() ? -1 : (a.getCost() == b.getCost() ? 0 : 1);
+            }
+        });
+        for (InjectionStrategy strategy : candidates) {
+            boolean supported;
+            try {
+                supported = strategy.isSupported(loader);
+            } catch (RuntimeException e) {
+                Log.w(Hotfix.TAG, "check of " + strategy.getName() + " failed", e);
+                supported = false;
+            }
+            if (supported) {
+                Log.i(Hotfix.TAG, "inject with " + strategy.getName() + ", cost "
+                        + strategy.getCost());
+                return strategy;
+            }
+        }
+        Log.e(Hotfix.TAG, "no injection strategy supports " + loader);
+        return null;
+    }
+
+    /**
+     * Injects with {@code strategy}. The built-in strategies report their own phases; for the
+     * added ones the whole injection is reported as {@link HotfixMetrics.Phase#INJECT}, so their
+     * overhead shows up next to the built-in ones.
+     */
+    static boolean inject(InjectionStrategy strategy, Context context, List<File> dexFiles,
+                          File dexOptDir) {
+        if (!sAdded.contains(strategy)) {
+            return strategy.inject(context, dexFiles, dexOptDir);
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            success = strategy.inject(context, dexFiles, dexOptDir);
+        } catch (RuntimeException e) {
+            Log.e(Hotfix.TAG, strategy.getName() + " failed to inject " + dexFiles, e);
+        } finally {
+            HotfixMetrics.phase(HotfixMetrics.Phase.INJECT, start, 0, strategy.getName(),
+                    success);
+        }
+        if (!success) {
+            HotfixMetrics.count(HotfixMetrics.Counter.INJECT_FAILED);
+        }
+        return success;
+    }
+}
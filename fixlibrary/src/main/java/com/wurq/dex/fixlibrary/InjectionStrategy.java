@@ -0,0 +1,65 @@
+package com.wurq.dex.fixlibrary;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * A way of making the classes of a patch take the place of the app's.
+ *
+ * The built-in strategies are {@link Hotfix.InjectionMode#PREPEND}, one installer per range of
+ * platform versions ({@code V24}, {@code V23} ...), and {@link Hotfix.InjectionMode#INDEXED}.
+ * More are added with {@link Hotfix#addInjectionStrategy}. The first time the process needs one,
+ * the supported strategy with the lowest {@link #getCost} is chosen, and it is kept for the rest
+ * of the process.
+ */
+public interface InjectionStrategy {
+
+    /**
+     * Cost of the built-in PREPEND installers, the unit other costs are given in.
+     */
+    int PREPEND_COST = 100;
+
+    /**
+     * Cost of the built-in INDEXED strategy. Opening and indexing the patch at every start
+     * outweighs the lookups it saves for the small patches of most apps.
+     */
+    int INDEXED_COST = 150;
+
+    /**
+     * @return the name reported to {@link HotfixListener} as the installer
+     */
+    String getName();
+
+    /**
+     * Checks the preconditions of the strategy: the platform version and runtime, and the
+     * private fields and methods it reaches through reflection. Called once, while choosing;
+     * must not modify the class loader.
+     */
+    boolean isSupported(ClassLoader loader);
+
+    /**
+     * @return the overhead of the strategy relative to {@link #PREPEND_COST}, e.g. measured with
+     * the {@code benchmark} module against the built-in ones. Ties go to the built-in strategies.
+     */
+    int getCost();
+
+    /**
+     * @return true if classes loaded this way can be rejected by Dalvik's pre-verification
+     * ({@code CLASS_ISPREVERIFIED}), so {@link Hotfix#install} has to load hack.apk
+     */
+    boolean needsHackDex();
+
+    /**
+     * Loads the patch's dex files into the app's class loader, in place of a patch loaded
+     * earlier in the process.
+     *
+     * @param dexFiles  classes.dex, classes2.dex ... classesN.dex in load order, or the archive
+     *                  holding them
+     * @param dexOptDir where the optimized dex goes; the patch was optimized into it when it was
+     *                  prepared
+     * @return false if the patch could not be loaded
+     */
+    boolean inject(Context context, List<File> dexFiles, File dexOptDir);
+}
@@ -0,0 +1,16 @@
+package com.wurq.dex.fixlibrary;
+
+/**
+ * Told how a {@link Hotfix#loadPatchAsync} ended. Called once, on the executor thread when the
+ * work finished in time, or on the thread waiting in {@link java.util.concurrent.Future#get}
+ * when the deadline passed first.
+ */
+public interface InstallCallback {
+
+    /**
+     * @param outcome what this process runs with
+     * @param error   for {@link Hotfix.Outcome#FAILED}, the exception that rejected the new
+     *                patch if there was one; otherwise null
+     */
+    void onOutcome(Hotfix.Outcome outcome, Throwable error);
+}
@@ -0,0 +1,139 @@
+package com.wurq.dex.fixlibrary;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Native libraries of a patch: {@code lib/<abi>/*.so} entries of the archive.
+ *
+ * Like the package installer, a single ABI is picked for all libraries, the first one of
+ * {@link #getProcessAbis} the patch has libraries for. Only the entries of that ABI are
+ * recorded at install and nothing is extracted then; {@link Hotfix#loadLibrary} extracts a
+ * library the first time it is loaded. The patch's native directory is put in front of
+ * {@code DexPathList}'s native library directories, so once extracted a library is also found
+ * by a plain {@link System#loadLibrary}.
+ */
+final class NativeLibraries {
+
+    static final String LIB_PREFIX = "lib/";
+
+    private static final String SO_SUFFIX = ".so";
+
+    private NativeLibraries() {
+    }
+
+    /**
+     * @return true for {@code lib/<abi>/<name>.so}
+     */
+    static boolean isNativeLibrary(String name) {
+        if (!name.startsWith(LIB_PREFIX) || !name.endsWith(SO_SUFFIX)) {
+            return false;
+        }
+        int slash = name.indexOf('/', LIB_PREFIX.length());
+        return slash > LIB_PREFIX.length() && name.indexOf('/', slash + 1) < 0;
+    }
+
+    static String abiOf(String name) {
+        return name.substring(LIB_PREFIX.length(), name.indexOf('/', LIB_PREFIX.length()));
+    }
+
+    /**
+     * @return the ABIs this process can load, preferred first. A 32 bit process on a 64 bit
+     * device only gets the 32 bit ones.
+     */
+    static List<String> getProcessAbis() {
+        List<String> abis = new ArrayList<String>();
+        if (Build.VERSION.SDK_INT >= 21) {
+            String arch = System.getProperty("os.arch", "");
+            String[] supported = arch.contains("64")
+                    ? Build.SUPPORTED_64_BIT_ABIS : Build.SUPPORTED_32_BIT_ABIS;
+            if (supported != null) {
+                abis.addAll(Arrays.asList(supported));
+            }
+        } else {
+            //noinspection deprecation
+            for (String abi : new String[]{Build.CPU_ABI, Build.CPU_ABI2}) {
+                if (abi != null && abi.length() > 0 && !abi.equals("unknown")) {
+                    abis.add(abi);
+                }
+            }
+        }
+        return abis;
+    }
+
+    /**
+     * @return the first of {@code processAbis} the patch has libraries for, or null
+     */
+    static String selectAbi(Collection<String> patchAbis, List<String> processAbis) {
+        for (String abi : processAbis) {
+            if (patchAbis.contains(abi)) {
+                return abi;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts {@code dir} in front of the native library directories of {@code loader}.
+     *
+     * @return false if the class loader does not have the expected fields
+     */
+    static boolean injectDir(ClassLoader loader, File dir) {
+        try {
+            Object dexPathList = DexHotfix.findField(loader, "pathList").get(loader);
+            Field dirsField = DexHotfix.findField(dexPathList, "nativeLibraryDirectories");
+            if (Build.VERSION.SDK_INT < 23) {
+                // API 14-22: File[] nativeLibraryDirectories
+                File[] dirs = (File[]) dirsField.get(dexPathList);
+                List<File> combined = prepend(dir, Arrays.asList(dirs));
+                dirsField.set(dexPathList, combined.toArray(new File[combined.size()]));
+                return true;
+            }
+            @SuppressWarnings("unchecked")
+            List<File> dirs = (List<File>) dirsField.get(dexPathList);
+            List<File> combined = prepend(dir, dirs);
+            dirs.clear();
+            dirs.addAll(combined);
+
+            @SuppressWarnings("unchecked")
+            List<File> systemDirs = (List<File>) DexHotfix.findField(dexPathList,
+                    "systemNativeLibraryDirectories").get(dexPathList);
+            List<File> all = new ArrayList<File>(combined);
+            all.addAll(systemDirs);
+            Object[] elements;
+            if (Build.VERSION.SDK_INT >= 26) {
+                Method make = DexHotfix.findMethod(dexPathList, "makePathElements", List.class);
+                elements = (Object[]) make.invoke(null, all);
+            } else {
+                Method make = DexHotfix.findMethod(dexPathList, "makePathElements", List.class,
+                        File.class, List.class);
+                elements = (Object[]) make.invoke(null, all, null, new ArrayList<Object>());
+            }
+            DexHotfix.findField(dexPathList, "nativeLibraryPathElements").set(dexPathList,
+                    elements);
+            return true;
+        } catch (Exception e) {
+            Log.e(Hotfix.TAG, "add " + dir + " to the native library path failed", e);
+            return false;
+        }
+    }
+
+    private static List<File> prepend(File dir, List<File> dirs) {
+        List<File> combined = new ArrayList<File>(dirs.size() + 1);
+        combined.add(dir);
+        for (File existing : dirs) {
+            if (!existing.equals(dir)) {
+                combined.add(existing);
+            }
+        }
+        return combined;
+    }
+}
@@ -0,0 +1,175 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+/**
+ * Reads a patch archive exactly once: every entry is written straight to its destination while
+ * its SHA-256 is computed, the archive digest is computed over the same bytes, and when a signer
+ * certificate is given each entry's certificate is checked as soon as the entry has been read.
+ *
+ * Signature checking relies on {@link JarInputStream}, which needs the signature files at the
+ * start of the archive as jarsigner and apksigner write them. Entries without certificates fail
+ * the check, so an archive laid out differently is rejected rather than accepted unverified.
+ *
+ * The stream only sees the entries reachable through their local headers, while
+ * {@link java.util.zip.ZipFile} and the runtime go through the central directory, which can
+ * point somewhere else. {@link Result#verified} holds what the check saw, for whoever reads the
+ * archive through the central directory later to compare against.
+ */
+final class PatchExtractor {
+
+    private static final String META_INF = "META-INF/";
+
+    static final class Result {
+        final String digest;
+        final long size;
+        final List<PatchManifest.Entry> entries;
+        /**
+         * SHA-256 hex by name of every entry outside META-INF whose signature was checked, or
+         * null if there was no signer certificate
+         */
+        final Map<String, String> verified;
+
+        Result(String digest, long size, List<PatchManifest.Entry> entries) {
+            this(digest, size, entries, null);
+        }
+
+        Result(String digest, long size, List<PatchManifest.Entry> entries,
+               Map<String, String> verified) {
+            this.digest = digest;
+            this.size = size;
+            this.entries = entries;
+            this.verified = verified;
+        }
+    }
+
+    private PatchExtractor() {
+    }
+
+    /**
+     * Extracts {@code source} into {@code destDir}.
+     *
+     * @param signerCert encoded certificate every entry must be signed with, or null to skip the
+     *                   signature check.
+     * @param filter     entries to write out. The others are still read, as their signature has
+     *                   to be checked too, but nothing is written for them.
+     * @throws SignVerifyPatchFailedException if signerCert is given and an entry is unsigned,
+     *                                        signed by someone else or does not match its digest.
+     *                                        {@code destDir} is left partially written and is
+     *                                        the caller's to delete.
+     */
+    static Result extract(File source, File destDir, byte[] signerCert,
+                          FileHelper.EntryFilter filter) throws IOException {
+        MessageDigest archiveDigest = FileHelper.newSha256();
+        MessageDigest entryDigest = FileHelper.newSha256();
+        byte[] buffer = FileHelper.obtainBuffer();
+        List<PatchManifest.Entry> entries = new ArrayList<PatchManifest.Entry>();
+        Map<String, String> verified = signerCert != null ? new HashMap<String, String>() : null;
+        String destPath = destDir.getCanonicalPath() + File.separator;
+
+        InputStream raw = new DigestInputStream(
+                new BufferedInputStream(new FileInputStream(source), FileHelper.BUFFER_SIZE),
+                archiveDigest);
+        try {
+            JarInputStream jarIn = new JarInputStream(raw, signerCert != null);
+            boolean verifiedAny = false;
+            JarEntry entry;
+            while ((entry = jarIn.getNextJarEntry()) != null) {
+                String name = entry.getName();
+                File file = new File(destDir, name);
+                if (!file.getCanonicalPath().startsWith(destPath)) {
+                    throw new IOException("entry " + name + " escapes " + destDir);
+                }
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                boolean accepted = filter.accept(name);
+                if (!accepted && signerCert == null) {
+                    continue;
+                }
+                OutputStream out = null;
+                if (accepted) {
+                    File parent = file.getParentFile();
+                    if (!parent.exists()) {
+                        parent.mkdirs();
+                    }
+                    out = new FileOutputStream(file);
+                }
+
+                entryDigest.reset();
+                long size = 0;
+                try {
+                    int read;
+                    while ((read = jarIn.read(buffer)) != -1) {
+                        entryDigest.update(buffer, 0, read);
+                        if (out != null) {
+                            out.write(buffer, 0, read);
+                        }
+                        size += read;
+                    }
+                } catch (SecurityException e) {
+                    throw new SignVerifyPatchFailedException(
+                            "entry " + name + " does not match its signed digest: " + source);
+                } finally {
+                    FileHelper.closeQuietly(out);
+                }
+
+                String digest = FileHelper.toHex(entryDigest.digest());
+                if (signerCert != null && !name.startsWith(META_INF)) {
+                    if (!isSignedBy(entry.getCertificates(), signerCert)) {
+                        throw new SignVerifyPatchFailedException(
+                                "sign is not equal with main apk: " + source + " (" + name + ")");
+                    }
+                    if (verified.put(name, digest) != null) {
+                        throw new SignVerifyPatchFailedException(
+                                "entry " + name + " appears twice: " + source);
+                    }
+                    verifiedAny = true;
+                }
+                if (accepted) {
+                    entries.add(new PatchManifest.Entry(name, size, digest));
+                }
+            }
+            if (signerCert != null && !verifiedAny) {
+                throw new SignVerifyPatchFailedException("patch has no signed entries: " + source);
+            }
+
+            // the central directory is not visited by JarInputStream, finish the archive digest
+            while (raw.read(buffer) != -1) {
+            }
+        } finally {
+            FileHelper.recycleBuffer(buffer);
+            raw.close();
+        }
+        return new Result(FileHelper.toHex(archiveDigest.digest()), source.length(), entries,
+                verified);
+    }
+
+    private static boolean isSignedBy(Certificate[] certs, byte[] signerCert) {
+        if (certs == null || certs.length == 0 || certs[0] == null) {
+            return false;
+        }
+        try {
+            return Arrays.equals(signerCert, certs[0].getEncoded());
+        } catch (CertificateEncodingException e) {
+            return false;
+        }
+    }
+}
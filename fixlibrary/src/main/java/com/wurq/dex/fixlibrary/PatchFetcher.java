@@ -0,0 +1,337 @@
+package com.wurq.dex.fixlibrary;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+
+/**
+ * Downloads a patch over HTTP in ranged chunks into a directory next to the patch store.
+ *
+ * The bytes go from the socket through one pooled buffer into a {@code <sha256>.part} file and
+ * into the SHA-256 of the patch at the same time, so memory stays bounded and the digest is
+ * known when the last chunk arrives. An interrupted download is resumed from the end of the
+ * part file, in this process after a short backoff or by a later {@link #fetch} of the same
+ * patch, which only hashes the part already on disk again. A finished patch is renamed to
+ * {@code <sha256>.apk}; as it lives in {@code files/} like the store, {@link PatchStore} can
+ * move it in with a rename instead of a copy.
+ *
+ * Servers that ignore {@code Range} are handled by taking the whole body of the first answer.
+ */
+public final class PatchFetcher {
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final String PATCH_SUFFIX = ".apk";
+
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    private static final int TIMEOUT_MS = 15 * 1000;
+
+    private static final long BACKOFF_MS = 500;
+
+    private static final long MAX_BACKOFF_MS = 8 * 1000;
+
+    /**
+     * A failure that another attempt would not fix: the server does not have the patch, or it
+     * is not the patch that was asked for.
+     */
+    private static final class FatalFetchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FatalFetchException(String message) {
+            super(message);
+        }
+    }
+
+    private final File dir;
+    private final int chunkSize;
+    private final int maxAttempts;
+    long backoffMillis = BACKOFF_MS;
+
+    public PatchFetcher(File dir) {
+        this(dir, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param dir         where part files and finished patches are kept; put it on the same file
+     *                    system as the app's files directory
+     * @param chunkSize   bytes asked for by each ranged request
+     * @param maxAttempts requests in a row that may fail before {@link #fetch} gives up; the part
+     *                    file stays for the next call
+     */
+    public PatchFetcher(File dir, int chunkSize, int maxAttempts) {
+        this.dir = dir;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Downloads the patch, resuming an earlier partial download of it.
+     *
+     * @param sha256 hex SHA-256 the patch must have
+     * @param size   size of the patch, or -1 to take it from the server
+     * @return the downloaded patch, which the caller hands to {@link Hotfix#preparePatch}
+     * @throws IOException if the download failed {@code maxAttempts} times in a row, or the
+     *                     server sent something else than the patch. In the latter case the
+     *                     part file is deleted.
+     */
+    public File fetch(URL url, String sha256, long size) throws IOException {
+        String name = sha256.toLowerCase();
+        File patch = new File(dir, name + PATCH_SUFFIX);
+        if (patch.isFile() && (size < 0 || patch.length() == size)
+                && name.equals(FileHelper.sha256(patch))) {
+            return patch;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("mkdir " + dir + " failed");
+        }
+        deleteOthers(name);
+
+        File part = new File(dir, name + PART_SUFFIX);
+        long start = System.nanoTime();
+        Download download = null;
+        boolean success = false;
+        try {
+            download = new Download(part, size);
+            int failures = 0;
+            while (!download.isComplete()) {
+                long before = download.offset;
+                try {
+                    download.nextChunk(url);
+                    if (download.offset == before && !download.isComplete()) {
+                        // 空的响应也算失败, 否则会一直请求下去
+                        throw new IOException(url + " sent nothing at " + before);
+                    }
+                    failures = 0;
+                } catch (FatalFetchException e) {
+                    part.delete();
+                    throw e;
+                } catch (IOException e) {
+                    download.rollback();
+                    // 有进展的失败重新计数
+                    failures = download.offset > before ? 1 : failures + 1;
+                    if (failures >= maxAttempts) {
+                        throw e;
+                    }
+                    Log.w(Hotfix.TAG, "fetch " + url + " failed at " + download.offset
+                            + ", retry", e);
+                    backoff(backoffMillis << (failures - 1));
+                }
+            }
+            if (!name.equals(FileHelper.toHex(download.digest.digest()))) {
+                part.delete();
+                throw new FatalFetchException(url + " is not the patch " + name);
+            }
+            if (!part.renameTo(patch)) {
+                throw new IOException("rename " + part + " to " + patch + " failed");
+            }
+            success = true;
+            return patch;
+        } finally {
+            HotfixMetrics.phase(HotfixMetrics.Phase.FETCH, start,
+                    download != null ? download.received : 0, null, success);
+        }
+    }
+
+    /**
+     * Only one patch is downloaded at a time, the parts and patches of any other are stale.
+     */
+    private void deleteOthers(String name) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().startsWith(name + ".")) {
+                FileHelper.deleteDir(file);
+            }
+        }
+    }
+
+    private static void backoff(long delay) throws IOException {
+        try {
+            Thread.sleep(Math.min(MAX_BACKOFF_MS, delay));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while fetching the patch");
+        }
+    }
+
+    /**
+     * State of one download: the part file, how much of it is written and digested, and the
+     * total size once known.
+     */
+    private final class Download {
+        final File part;
+        final MessageDigest digest = FileHelper.newSha256();
+        long offset;
+        long total;
+        /** bytes that came over the network */
+        long received;
+
+        Download(File part, long size) throws IOException {
+            this.part = part;
+            this.total = size;
+            if (size >= 0 && part.length() > size) {
+                part.delete();
+            }
+            // 续传: 重新计算已下载部分的摘要
+            offset = digestExisting();
+        }
+
+        boolean isComplete() {
+            return total >= 0 && offset == total;
+        }
+
+        /**
+         * Requests the next chunk and appends it to the part file.
+         */
+        void nextChunk(URL url) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            long end = offset + chunkSize - 1;
+            if (total >= 0) {
+                end = Math.min(end, total - 1);
+            }
+            connection.setRequestProperty("Range", "bytes=" + offset + "-" + end);
+            try {
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    checkContentRange(connection.getHeaderField("Content-Range"));
+                    append(connection.getInputStream(), false);
+                } else if (code == HttpURLConnection.HTTP_OK) {
+                    //服务器不支持Range, 整个文件一次下载
+                    long length = connection.getContentLength();
+                    if (total < 0) {
+                        total = length;
+                    } else if (length >= 0 && length != total) {
+                        throw new FatalFetchException(url + " is " + length + " bytes, not " + total);
+                    }
+                    append(connection.getInputStream(), true);
+                    if (total < 0) {
+                        total = offset;
+                    }
+                } else if (code == 416 && total < 0 && offset > 0) {
+                    // 已经下载完, 只是不知道总长度
+                    total = offset;
+                } else if (code >= 400 && code < 500 && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                        && code != 429) {
+                    throw new FatalFetchException(url + " answered HTTP " + code);
+                } else {
+                    throw new IOException(url + " answered HTTP " + code);
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private void checkContentRange(String range) throws IOException {
+            // bytes <first>-<last>/<total or *>
+            if (range == null || !range.startsWith("bytes ")) {
+                throw new IOException("bad Content-Range " + range);
+            }
+            int dash = range.indexOf('-');
+            int slash = range.indexOf('/');
+            try {
+                long first = Long.parseLong(range.substring("bytes ".length(), dash).trim());
+                if (first != offset) {
+                    throw new IOException("asked for " + offset + ", got " + range);
+                }
+                String length = range.substring(slash + 1).trim();
+                if (!length.equals("*")) {
+                    long rangeTotal = Long.parseLong(length);
+                    if (total >= 0 && rangeTotal != total) {
+                        throw new FatalFetchException("patch is " + rangeTotal + " bytes, not "
+                                + total);
+                    }
+                    total = rangeTotal;
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("bad Content-Range " + range);
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("bad Content-Range " + range);
+            }
+        }
+
+        /**
+         * @param restart true if {@code in} starts at the first byte of the patch rather than at
+         *                {@link #offset}
+         */
+        private void append(InputStream in, boolean restart) throws IOException {
+            if (restart && offset > 0) {
+                offset = 0;
+                digest.reset();
+                truncate();
+            }
+            byte[] buffer = FileHelper.obtainBuffer();
+            OutputStream out = new FileOutputStream(part, true);
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (total >= 0 && offset + read > total) {
+                        throw new FatalFetchException("server sent more than " + total + " bytes");
+                    }
+                    out.write(buffer, 0, read);
+                    digest.update(buffer, 0, read);
+                    offset += read;
+                    received += read;
+                }
+            } finally {
+                FileHelper.recycleBuffer(buffer);
+                FileHelper.closeQuietly(in);
+                out.close();
+            }
+        }
+
+        /**
+         * Cuts the part file back to what has been digested, after a failed write.
+         */
+        void rollback() throws IOException {
+            if (part.length() != offset) {
+                truncate();
+            }
+        }
+
+        private void truncate() throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(part, "rw");
+            try {
+                raf.setLength(offset);
+            } finally {
+                raf.close();
+            }
+        }
+
+        private long digestExisting() throws IOException {
+            if (!part.isFile()) {
+                return 0;
+            }
+            long length = 0;
+            byte[] buffer = FileHelper.obtainBuffer();
+            InputStream in = new FileInputStream(part);
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    length += read;
+                }
+            } finally {
+                FileHelper.recycleBuffer(buffer);
+                in.close();
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes one extracted patch inside the {@link PatchStore}: the digest of the source archive,
+ * every extracted entry with its size and SHA-256, the native libraries left in the archive until
+ * they are loaded, and where the optimized dex output lives.
+ *
+ * The on-disk form is a small line based text file so it can be read with a single short read
+ * on the startup path:
+ * <pre>
+ * hotfix-manifest 1
+ * patch &lt;sha256&gt; &lt;size&gt;
+ * signed &lt;true|false&gt;
+ * optimized &lt;true|false&gt;
+ * optdex &lt;directory&gt;
+ * entry &lt;sha256&gt; &lt;size&gt; &lt;name&gt;
+ * native &lt;sha256 or -&gt; &lt;size&gt; &lt;name&gt;
+ * </pre>
+ * A native library has no digest when the archive as a whole was verified, or not at all.
+ */
+final class PatchManifest {
+
+    static final String FILE_NAME = "manifest";
+
+    private static final String HEADER = "hotfix-manifest 1";
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final String NO_DIGEST = "-";
+
+    static final class Entry {
+        final String name;
+        final long size;
+        final String digest;
+
+        Entry(String name, long size, String digest) {
+            this.name = name;
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+
+    final String patchDigest;
+    final long patchSize;
+    final boolean signVerified;
+    final boolean optimized;
+    final String optDir;
+    private final List<Entry> entries;
+    private final List<Entry> nativeLibraries;
+
+    PatchManifest(String patchDigest, long patchSize, boolean signVerified, String optDir,
+                  List<Entry> entries) {
+        this(patchDigest, patchSize, signVerified, optDir, entries,
+                Collections.<Entry>emptyList());
+    }
+
+    PatchManifest(String patchDigest, long patchSize, boolean signVerified, String optDir,
+                  List<Entry> entries, List<Entry> nativeLibraries) {
+        this(patchDigest, patchSize, signVerified, false, optDir, entries, nativeLibraries);
+    }
+
+    private PatchManifest(String patchDigest, long patchSize, boolean signVerified,
+                          boolean optimized, String optDir, List<Entry> entries,
+                          List<Entry> nativeLibraries) {
+        this.patchDigest = patchDigest;
+        this.patchSize = patchSize;
+        this.signVerified = signVerified;
+        this.optimized = optimized;
+        this.optDir = optDir;
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+        this.nativeLibraries = Collections.unmodifiableList(new ArrayList<Entry>(nativeLibraries));
+    }
+
+    /**
+     * @return a copy of this manifest recording that the dex files have been optimized into
+     * {@link #optDir}, i.e. the patch is ready to be spliced in without further work.
+     */
+    PatchManifest asOptimized() {
+        return new PatchManifest(patchDigest, patchSize, signVerified, true, optDir, entries,
+                nativeLibraries);
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    Entry getEntry(String name) {
+        for (Entry entry : entries) {
+            if (entry.name.equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the {@code lib/<abi>/*.so} entries of the archive for the ABI chosen at install
+     */
+    List<Entry> getNativeLibraries() {
+        return nativeLibraries;
+    }
+
+    /**
+     * @param fileName a library file name such as {@code libfoo.so}
+     */
+    Entry getNativeLibrary(String fileName) {
+        for (Entry entry : nativeLibraries) {
+            if (entry.name.endsWith("/" + fileName)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a manifest, returning null if it is missing or not well formed.
+     */
+    static PatchManifest read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+            if (!HEADER.equals(reader.readLine())) {
+                return null;
+            }
+            String patchDigest = null;
+            long patchSize = -1;
+            boolean signVerified = false;
+            boolean optimized = false;
+            String optDir = null;
+            List<Entry> entries = new ArrayList<Entry>();
+            List<Entry> nativeLibraries = new ArrayList<Entry>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("patch ")) {
+                    String[] parts = line.split(" ", 3);
+                    patchDigest = parts[1];
+                    patchSize = Long.parseLong(parts[2]);
+                } else if (line.startsWith("signed ")) {
+                    signVerified = Boolean.parseBoolean(line.substring("signed ".length()));
+                } else if (line.startsWith("optimized ")) {
+                    optimized = Boolean.parseBoolean(line.substring("optimized ".length()));
+                } else if (line.startsWith("optdex ")) {
+                    optDir = line.substring("optdex ".length());
+                } else if (line.startsWith("entry ")) {
+                    String[] parts = line.split(" ", 4);
+                    entries.add(new Entry(parts[3], Long.parseLong(parts[2]), parts[1]));
+                } else if (line.startsWith("native ")) {
+                    String[] parts = line.split(" ", 4);
+                    nativeLibraries.add(new Entry(parts[3], Long.parseLong(parts[2]),
+                            NO_DIGEST.equals(parts[1]) ? null : parts[1]));
+                }
+            }
+            if (patchDigest == null || optDir == null) {
+                return null;
+            }
+            return new PatchManifest(patchDigest, patchSize, signVerified, optimized, optDir,
+                    entries, nativeLibraries);
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            FileHelper.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Writes the manifest next to a temporary file first so a reader never sees it half written.
+     */
+    void write(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), CHARSET);
+        try {
+            writer.write(HEADER + "\n");
+            writer.write("patch " + patchDigest + " " + patchSize + "\n");
+            writer.write("signed " + signVerified + "\n");
+            writer.write("optimized " + optimized + "\n");
+            writer.write("optdex " + optDir + "\n");
+            for (Entry entry : entries) {
+                writer.write("entry " + entry.digest + " " + entry.size + " " + entry.name + "\n");
+            }
+            for (Entry entry : nativeLibraries) {
+                writer.write("native " + (entry.digest != null ? entry.digest : NO_DIGEST) + " "
+                        + entry.size + " " + entry.name + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("rename " + tmp + " to " + file + " failed");
+        }
+    }
+}
@@ -0,0 +1,898 @@
+package com.wurq.dex.fixlibrary;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Content addressed store for extracted patches.
+ *
+ * Every patch lives in {@code files/hotfix/<sha256>/} next to a {@link PatchManifest}, and its
+ * optimized dex output lives in {@code files/optdex/<sha256>/}. The file {@code files/hotfix/current}
+ * names the digest that is loaded on start, so an unchanged patch costs one manifest read instead
+ * of a copy, an unzip and a dexopt.
+ *
+ * There are two slots: {@link #ACTIVE_SLOT}, the patch the app runs with, and
+ * {@link #STAGING_SLOT}, a patch fully prepared in the background while the app keeps running
+ * on the active one. Each slot is a pointer file holding a digest, written to a temporary file
+ * and renamed over the old one, and {@link #promoteStaging} switches slots with a single rename
+ * at the next start. A half prepared patch is never named by a slot, so a crash at any point
+ * leaves the previous patch loadable.
+ *
+ * A patch whose dex files are all {@link ZipEntry#STORED} and aligned is not extracted: the
+ * archive itself is moved into the patch directory as {@link #ARCHIVE_NAME} and handed to the
+ * runtime, which maps the dex straight out of it. Only the other selected entries are written.
+ * The archive is also kept when it has native libraries for this device, which are extracted
+ * one by one when they are first loaded, see {@link NativeLibraries}.
+ */
+final class PatchStore {
+
+    /**
+     * Pointer to the patch loaded on start. Named {@code current} as in earlier versions.
+     */
+    static final String ACTIVE_SLOT = "current";
+
+    /**
+     * Pointer to a prepared patch that becomes active on the next start.
+     */
+    static final String STAGING_SLOT = "staging";
+
+    /**
+     * Name of the archive kept in the patch directory when its dex files are loaded from it
+     * directly.
+     */
+    static final String ARCHIVE_NAME = "patch.apk";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String INCOMING_DIR = "incoming";
+
+    /**
+     * Directory of the base apk dex files extracted for delta patches.
+     */
+    static final String BASE_DIR = "base";
+
+    /**
+     * Directory in a patch directory the native libraries are extracted into.
+     */
+    private static final String NATIVE_DIR = "native";
+
+    private static final String META_INF = "META-INF/";
+
+    private final File filesDir;
+    private final File hotfixDir;
+    private final File optRootDir;
+    private final File baseApk;
+    private final FileHelper.EntryFilter extractFilter;
+    private final int extractThreads;
+    private final boolean directDex;
+
+    /**
+     * @param baseApk        the installed apk, whose dex files {@link DexDelta} patches are
+     *                       applied to. May be null if delta patches are not used.
+     * @param extractFilter  entries of a patch archive that are extracted into the store, apart
+     *                       from native libraries which are only extracted when loaded.
+     * @param extractThreads threads used to inflate them when no signature check forces a
+     *                       sequential pass over the archive.
+     * @param directDex      true to keep a patch with uncompressed, aligned dex files as an
+     *                       archive instead of extracting them.
+     */
+    PatchStore(File filesDir, File baseApk, final FileHelper.EntryFilter extractFilter,
+               int extractThreads, boolean directDex) {
+        this.filesDir = filesDir;
+        this.hotfixDir = new File(filesDir, Hotfix.HOTFIX_DIR);
+        this.optRootDir = new File(filesDir, DexHotfix.DEX_OPT_DIR);
+        this.baseApk = baseApk;
+        this.extractFilter = new FileHelper.EntryFilter() {
+            @Override
+            public boolean accept(String name) {
+                return !NativeLibraries.isNativeLibrary(name) && extractFilter.accept(name);
+            }
+        };
+        this.extractThreads = extractThreads;
+        this.directDex = directDex;
+    }
+
+    File getHotfixDir() {
+        return hotfixDir;
+    }
+
+    StoreLock getLock(String name) {
+        return StoreLock.get(new File(hotfixDir, name));
+    }
+
+    VerdictCache getVerdicts() {
+        return new VerdictCache(hotfixDir);
+    }
+
+    File getOptRootDir() {
+        return optRootDir;
+    }
+
+    File getPatchDir(String digest) {
+        return new File(hotfixDir, digest);
+    }
+
+    File getOptDir(PatchManifest manifest) {
+        return new File(filesDir, manifest.optDir);
+    }
+
+    File getEntryFile(PatchManifest manifest, String name) {
+        return new File(getPatchDir(manifest.patchDigest), name);
+    }
+
+    File getNativeDir(PatchManifest manifest) {
+        return new File(getPatchDir(manifest.patchDigest), NATIVE_DIR);
+    }
+
+    /**
+     * @return the patch's classes.dex, classes2.dex ... classesN.dex in load order, or the
+     * single {@link #ARCHIVE_NAME} holding them.
+     */
+    List<File> getDexFiles(PatchManifest manifest) {
+        List<String> names = new ArrayList<String>();
+        for (PatchManifest.Entry entry : manifest.getEntries()) {
+            if (dexIndex(entry.name) > 0) {
+                names.add(entry.name);
+            }
+        }
+        if (names.isEmpty() && manifest.getEntry(ARCHIVE_NAME) != null) {
+            return Collections.singletonList(getEntryFile(manifest, ARCHIVE_NAME));
+        }
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return dexIndex(lhs) - dexIndex(rhs);
+            }
+        });
+        List<File> files = new ArrayList<File>(names.size());
+        for (String name : names) {
+            files.add(getEntryFile(manifest, name));
+        }
+        return files;
+    }
+
+    /**
+     * @return true if the dex files are loaded from {@link #ARCHIVE_NAME}, false if they were
+     * extracted and the archive, if kept, only serves native libraries
+     */
+    private static boolean loadsFromArchive(List<PatchManifest.Entry> entries) {
+        boolean archive = false;
+        for (PatchManifest.Entry entry : entries) {
+            if (dexIndex(entry.name) > 0) {
+                return false;
+            }
+            archive |= entry.name.equals(ARCHIVE_NAME);
+        }
+        return archive;
+    }
+
+    /**
+     * @return 1 for classes.dex, N for classesN.dex, 0 for anything else
+     */
+    static int dexIndex(String name) {
+        if (!name.startsWith("classes") || !name.endsWith(".dex")) {
+            return 0;
+        }
+        String number = name.substring("classes".length(), name.length() - ".dex".length());
+        if (number.length() == 0) {
+            return 1;
+        }
+        try {
+            int index = Integer.parseInt(number);
+            return index > 1 ? index : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the manifest of a stored patch, or null if it is missing or no longer intact.
+     */
+    PatchManifest lookup(String digest) {
+        PatchManifest manifest = PatchManifest.read(
+                new File(getPatchDir(digest), PatchManifest.FILE_NAME));
+        if (manifest == null || !digest.equals(manifest.patchDigest)) {
+            return null;
+        }
+        boolean fromArchive = loadsFromArchive(manifest.getEntries());
+        for (PatchManifest.Entry entry : manifest.getEntries()) {
+            File file = getEntryFile(manifest, entry.name);
+            if (file.length() != entry.size) {
+                Log.w(Hotfix.TAG, "patch " + digest + " entry " + entry.name + " changed on disk");
+                return null;
+            }
+            if (dexIndex(entry.name) > 0 || fromArchive && entry.name.equals(ARCHIVE_NAME)) {
+                String problem = checkDexHeaders(file);
+                if (problem != null) {
+                    Log.w(Hotfix.TAG, "patch " + digest + " entry " + entry.name + ": " + problem);
+                    return null;
+                }
+            }
+        }
+        return manifest;
+    }
+
+    private static String checkDexHeaders(File file) {
+        if (file.getName().endsWith(".dex")) {
+            return DexReader.checkHeader(file);
+        }
+        try {
+            DexReader.openAll(file);
+            return null;
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * @return binary names of the classes the patch's dex files define, read from the dex
+     * tables without loading anything
+     */
+    List<String> getClassNames(PatchManifest manifest) throws IOException {
+        List<String> names = new ArrayList<String>();
+        for (File dexFile : getDexFiles(manifest)) {
+            for (DexReader reader : DexReader.openAll(dexFile)) {
+                names.addAll(reader.getClassNames());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Checks the Adler-32 checksum and SHA-1 signature every dex carries in its header, once
+     * when the patch enters the store; {@link #lookup} only checks the header afterwards.
+     */
+    private static void verifyDexFiles(File patchDir, List<PatchManifest.Entry> entries)
+            throws IOException {
+        boolean fromArchive = loadsFromArchive(entries);
+        for (PatchManifest.Entry entry : entries) {
+            if (dexIndex(entry.name) == 0 && !(fromArchive && entry.name.equals(ARCHIVE_NAME))) {
+                continue;
+            }
+            for (DexReader reader : DexReader.openAll(new File(patchDir, entry.name))) {
+                if (!reader.verifyChecksum() || !reader.verifySignature()) {
+                    throw new IOException(entry.name + " does not match its dex checksum");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the manifest of the patch named by {@code slot}, or null if there is none.
+     */
+    PatchManifest lookupSlot(String slot) {
+        String digest = readSlot(slot);
+        return digest != null ? lookup(digest) : null;
+    }
+
+    String readSlot(String slot) {
+        File pointer = new File(hotfixDir, slot);
+        if (!pointer.isFile()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(pointer);
+            byte[] buffer = new byte[128];
+            int length = 0;
+            int read;
+            while (length < buffer.length
+                    && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+            }
+            String digest = new String(buffer, 0, length, "US-ASCII").trim();
+            return digest.length() > 0 ? digest : null;
+        } catch (IOException e) {
+            Log.w(Hotfix.TAG, "read " + pointer + " failed", e);
+            return null;
+        } finally {
+            FileHelper.closeQuietly(in);
+        }
+    }
+
+    void writeSlot(String slot, String digest) throws IOException {
+        hotfixDir.mkdirs();
+        File pointer = new File(hotfixDir, slot);
+        File tmp = new File(hotfixDir, slot + TMP_SUFFIX);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(digest.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(pointer)) {
+            tmp.delete();
+            throw new IOException("rename " + tmp + " to " + pointer + " failed");
+        }
+        markUsed(digest);
+    }
+
+    /**
+     * Records that the patch is in use now, for {@link StorageManager}'s least recently used
+     * order.
+     */
+    void markUsed(String digest) {
+        File manifest = new File(getPatchDir(digest), PatchManifest.FILE_NAME);
+        if (!manifest.setLastModified(System.currentTimeMillis())) {
+            Log.w(Hotfix.TAG, "touch " + manifest + " failed");
+        }
+    }
+
+    void clearSlot(String slot) {
+        new File(hotfixDir, slot).delete();
+    }
+
+    /**
+     * Makes the staged patch active if there is one and it is intact, by renaming the staging
+     * pointer over the active one. A staged patch that does not pass {@link #lookup} is dropped
+     * and the active patch stays as it was.
+     *
+     * @return true if the active slot changed
+     */
+    boolean promoteStaging() {
+        String digest = readSlot(STAGING_SLOT);
+        if (digest == null) {
+            return false;
+        }
+        File staging = new File(hotfixDir, STAGING_SLOT);
+        if (lookup(digest) == null) {
+            Log.w(Hotfix.TAG, "staged patch " + digest + " is not intact, keep the active one");
+            staging.delete();
+            HotfixMetrics.count(HotfixMetrics.Counter.STAGING_DISCARDED);
+            return false;
+        }
+        File active = new File(hotfixDir, ACTIVE_SLOT);
+        if (!staging.renameTo(active)) {
+            Log.w(Hotfix.TAG, "rename " + staging + " to " + active + " failed");
+            return false;
+        }
+        HotfixMetrics.count(HotfixMetrics.Counter.STAGING_PROMOTED);
+        return true;
+    }
+
+    /**
+     * Records in the stored manifest that the patch's dex files have been optimized.
+     */
+    PatchManifest markOptimized(PatchManifest manifest) throws IOException {
+        PatchManifest optimized = manifest.asOptimized();
+        optimized.write(new File(getPatchDir(manifest.patchDigest), PatchManifest.FILE_NAME));
+        return optimized;
+    }
+
+    /**
+     * @return true if a stored patch came from an archive of exactly {@code size} bytes. Only
+     * then can an incoming archive be a patch we already have, so only then is it worth hashing
+     * it before extraction.
+     */
+    boolean hasPatchOfSize(long size) {
+        File[] dirs = hotfixDir.listFiles();
+        if (dirs == null) {
+            return false;
+        }
+        for (File dir : dirs) {
+            if (!dir.isDirectory()) {
+                continue;
+            }
+            PatchManifest manifest = PatchManifest.read(new File(dir, PatchManifest.FILE_NAME));
+            if (manifest != null && manifest.patchSize == size) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Extracts the entries of {@code patchFile} accepted by the extract filter into the store.
+     * With a signer certificate this is a single sequential pass, see {@link PatchExtractor};
+     * without one only the selected entries are inflated, in parallel, through the central
+     * directory. The work happens in a temporary directory which is renamed to the archive
+     * digest once the manifest has been written, so an interrupted or rejected install never
+     * leaves a patch that {@link #lookup} would accept.
+     *
+     * {@code patchFile} is first moved into the temporary directory, and everything after that,
+     * the signature check included, reads that private copy: a patch on shared storage could
+     * otherwise be swapped between the check and the extraction. If the dex files can be loaded
+     * from the archive directly, the archive is kept in the store instead of extracted, see
+     * {@link #canLoadDirect}; so it is if it has native libraries for this device. It is moved
+     * back if the install fails.
+     *
+     * @param signerCert    certificate every entry must be signed with, or null to skip the
+     *                      check.
+     * @param verifyThreads with more than 1 and a signer certificate, the signature is checked
+     *                      by {@link PatchVerifier} on that many threads before extraction,
+     *                      instead of during it.
+     */
+    PatchManifest install(File patchFile, byte[] signerCert, int verifyThreads)
+            throws IOException {
+        return install(patchFile, signerCert, null, verifyThreads);
+    }
+
+    /**
+     * Same as {@link #install(File, byte[], int)} with the signature checked through the
+     * patch's {@link SignedDigests}: the selected entries are extracted in parallel like an
+     * unsigned patch and each is compared against the digest list signed with {@code key}.
+     *
+     * @throws SignVerifyPatchFailedException if the list is not signed with {@code key} or an
+     *                                        extracted entry does not match it
+     */
+    PatchManifest installSignedDigests(File patchFile, PublicKey key) throws IOException {
+        return install(patchFile, null, key, 1);
+    }
+
+    private PatchManifest install(File patchFile, byte[] signerCert, PublicKey digestsKey,
+                                  int verifyThreads) throws IOException {
+        hotfixDir.mkdirs();
+        File tmpDir = new File(hotfixDir, INCOMING_DIR + TMP_SUFFIX);
+        FileHelper.deleteDir(tmpDir);
+        if (!tmpDir.mkdirs()) {
+            throw new IOException("mkdir " + tmpDir + " failed");
+        }
+
+        // 先移到私有目录再校验, 校验和解压读的是同一个文件
+        File archive = new File(tmpDir, ARCHIVE_NAME);
+        moveArchive(patchFile, archive);
+        boolean success = false;
+        try {
+            boolean direct = directDex && canLoadDirect(archive);
+            boolean keep = direct || hasNativeLibraries(archive);
+            if (signerCert != null && verifyThreads > 1) {
+                verifyParallel(archive, signerCert, verifyThreads);
+            }
+            boolean signVerified = signerCert != null || digestsKey != null;
+            if (verifyThreads > 1) {
+                signerCert = null;
+            }
+            Map<String, String> signed = digestsKey != null
+                    ? SignedDigests.verify(archive, digestsKey) : null;
+            PatchExtractor.Result result;
+            List<PatchManifest.Entry> entries;
+            if (direct) {
+                result = installArchive(archive, tmpDir, signerCert, signed);
+                entries = new ArrayList<PatchManifest.Entry>(result.entries);
+            } else {
+                if (signerCert != null) {
+                    result = PatchExtractor.extract(archive, tmpDir, signerCert, extractFilter);
+                } else {
+                    result = extractSelected(archive, tmpDir, extractFilter);
+                    if (signed != null) {
+                        SignedDigests.check(signed, result.entries);
+                    }
+                }
+                entries = applyDeltas(tmpDir, result.entries);
+            }
+            if (result.verified != null) {
+                // 之后经中央目录读取的内容都要和签名校验读到的一致
+                signed = result.verified;
+                if (keep) {
+                    checkCentralDirectory(archive, signed);
+                }
+            }
+            List<PatchManifest.Entry> nativeLibraries;
+            if (keep) {
+                entries.add(new PatchManifest.Entry(ARCHIVE_NAME, result.size, result.digest));
+                nativeLibraries = selectNativeLibraries(archive, signed);
+            } else {
+                nativeLibraries = Collections.emptyList();
+                if (!archive.delete()) {
+                    throw new IOException("delete " + archive + " failed");
+                }
+            }
+            verifyDexFiles(tmpDir, entries);
+            PatchManifest existing = lookup(result.digest);
+            if (existing != null && (existing.signVerified || !signVerified)) {
+                return existing;
+            }
+
+            File patchDir = getPatchDir(result.digest);
+            FileHelper.deleteDir(patchDir);
+            FileHelper.deleteDir(new File(optRootDir, result.digest));
+            PatchManifest manifest = new PatchManifest(result.digest, result.size,
+                    signVerified, DexHotfix.DEX_OPT_DIR + File.separator + result.digest,
+                    entries, nativeLibraries);
+            manifest.write(new File(tmpDir, PatchManifest.FILE_NAME));
+
+            if (!tmpDir.renameTo(patchDir)) {
+                throw new IOException("rename " + tmpDir + " to " + patchDir + " failed");
+            }
+            success = true;
+            return manifest;
+        } finally {
+            if (!success) {
+                if (archive.exists() && !archive.renameTo(patchFile)) {
+                    Log.w(Hotfix.TAG, "move " + archive + " back to " + patchFile + " failed");
+                }
+                FileHelper.deleteDir(tmpDir);
+            }
+        }
+    }
+
+    /**
+     * @return true if every {@code classesN.dex} of {@code patchFile} is selected by the extract
+     * filter, {@link ZipEntry#STORED} and aligned to {@link ZipLayout#DEX_ALIGNMENT}, and the
+     * patch has no delta to apply. Dalvik only opens {@code classes.dex} of an archive, so there
+     * a multidex patch is always extracted.
+     */
+    private boolean canLoadDirect(File patchFile) {
+        List<ZipLayout.Entry> layout;
+        try {
+            layout = ZipLayout.read(patchFile);
+        } catch (IOException e) {
+            Log.w(Hotfix.TAG, "read layout of " + patchFile + " failed, extract it", e);
+            return false;
+        }
+        int dexCount = 0;
+        for (ZipLayout.Entry entry : layout) {
+            if (entry.name.endsWith(DexDelta.SUFFIX) && extractFilter.accept(entry.name)) {
+                return false;
+            }
+            if (dexIndex(entry.name) == 0) {
+                continue;
+            }
+            if (!extractFilter.accept(entry.name)
+                    || !entry.isStoredAndAligned(ZipLayout.DEX_ALIGNMENT)) {
+                return false;
+            }
+            dexCount++;
+        }
+        return dexCount == 1 || dexCount > 1 && Build.VERSION.SDK_INT >= 21;
+    }
+
+    /**
+     * Checks the signature with {@link PatchVerifier}, reported as
+     * {@link HotfixMetrics.Phase#SIGN_CHECK}.
+     *
+     * @throws SignVerifyPatchFailedException if an entry is not signed with {@code signerCert}
+     */
+    private static void verifyParallel(File archive, byte[] signerCert, int threads)
+            throws IOException {
+        long start = System.nanoTime();
+        boolean verified = false;
+        try {
+            verified = PatchVerifier.verify(archive, signerCert, threads);
+        } finally {
+            HotfixMetrics.phase(HotfixMetrics.Phase.SIGN_CHECK, start, archive.length(), null,
+                    verified);
+        }
+        if (!verified) {
+            throw new SignVerifyPatchFailedException("sign is not equal with main apk: "
+                    + archive);
+        }
+    }
+
+    /**
+     * Rejects an archive whose central directory lists other entries than the signature check
+     * read through the local headers. {@link ZipFile} and the runtime only go by the central
+     * directory, so an entry the check never saw would be loaded unverified.
+     *
+     * @param verified {@link PatchExtractor.Result#verified} of the archive
+     */
+    private static void checkCentralDirectory(File archive, Map<String, String> verified)
+            throws IOException {
+        Set<String> names = new HashSet<String>();
+        for (ZipLayout.Entry entry : ZipLayout.read(archive)) {
+            if (entry.name.endsWith("/") || entry.name.startsWith(META_INF)) {
+                continue;
+            }
+            if (!names.add(entry.name)) {
+                throw new SignVerifyPatchFailedException(entry.name
+                        + " appears twice in the central directory of " + archive);
+            }
+        }
+        if (!names.equals(verified.keySet())) {
+            throw new SignVerifyPatchFailedException("central directory of " + archive
+                    + " does not list the signed entries");
+        }
+    }
+
+    /**
+     * @param signed the verified digests of the archive, {@link SignedDigests} or those of
+     *               {@link PatchExtractor.Result#verified}; null if the signature was not
+     *               checked, then each library is hashed as it is now
+     * @return the native libraries of the archive for the ABI this process runs with, each with
+     * the digest {@link #extractNativeLibrary} checks it against
+     * @throws SignVerifyPatchFailedException if {@code signed} is given and does not list one
+     */
+    private static List<PatchManifest.Entry> selectNativeLibraries(File archive,
+                                                                   Map<String, String> signed)
+            throws IOException {
+        ZipFile zip = new ZipFile(archive);
+        try {
+            List<PatchManifest.Entry> result = new ArrayList<PatchManifest.Entry>();
+            for (ZipEntry entry : librariesForProcess(zip)) {
+                String digest;
+                if (signed != null) {
+                    digest = signed.get(entry.getName());
+                    if (digest == null) {
+                        throw new SignVerifyPatchFailedException(entry.getName()
+                                + " is not in the signed digests");
+                    }
+                } else {
+                    digest = sha256(zip, entry);
+                }
+                result.add(new PatchManifest.Entry(entry.getName(), entry.getSize(), digest));
+            }
+            return result;
+        } finally {
+            FileHelper.closeQuietly(zip);
+        }
+    }
+
+    private static boolean hasNativeLibraries(File archive) throws IOException {
+        ZipFile zip = new ZipFile(archive);
+        try {
+            return !librariesForProcess(zip).isEmpty();
+        } finally {
+            FileHelper.closeQuietly(zip);
+        }
+    }
+
+    /**
+     * @return the native library entries of the ABI this process runs with
+     */
+    private static List<ZipEntry> librariesForProcess(ZipFile zip) {
+        Map<String, List<ZipEntry>> byAbi = new HashMap<String, List<ZipEntry>>();
+        Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+        while (zipEntries.hasMoreElements()) {
+            ZipEntry entry = zipEntries.nextElement();
+            if (entry.isDirectory() || !NativeLibraries.isNativeLibrary(entry.getName())) {
+                continue;
+            }
+            String abi = NativeLibraries.abiOf(entry.getName());
+            List<ZipEntry> libraries = byAbi.get(abi);
+            if (libraries == null) {
+                libraries = new ArrayList<ZipEntry>();
+                byAbi.put(abi, libraries);
+            }
+            libraries.add(entry);
+        }
+        String abi = NativeLibraries.selectAbi(byAbi.keySet(), NativeLibraries.getProcessAbis());
+        return abi != null ? byAbi.get(abi) : Collections.<ZipEntry>emptyList();
+    }
+
+    private static String sha256(ZipFile zip, ZipEntry entry) throws IOException {
+        MessageDigest digest = FileHelper.newSha256();
+        byte[] buffer = FileHelper.obtainBuffer();
+        InputStream in = zip.getInputStream(entry);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            FileHelper.recycleBuffer(buffer);
+        }
+        return FileHelper.toHex(digest.digest());
+    }
+
+    /**
+     * Extracts a native library of the patch into {@link #getNativeDir}, unless an earlier call
+     * did. Processes extracting the same library at once each write their own temporary file and
+     * rename it, so no lock is needed.
+     *
+     * @param fileName a library file name such as {@code libfoo.so}
+     * @return the extracted library, or null if the patch does not have it
+     * @throws IOException if the library could not be extracted or does not match the digest
+     *                     recorded at install
+     */
+    File extractNativeLibrary(PatchManifest manifest, String fileName) throws IOException {
+        PatchManifest.Entry entry = manifest.getNativeLibrary(fileName);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.digest == null) {
+            // 早期版本记录的库没有摘要, 无法校验
+            throw new IOException(entry.name + " has no digest to check");
+        }
+        File nativeDir = getNativeDir(manifest);
+        File library = new File(nativeDir, fileName);
+        if (library.length() == entry.size) {
+            return library;
+        }
+        nativeDir.mkdirs();
+        File tmp = File.createTempFile(fileName, TMP_SUFFIX, nativeDir);
+        long start = System.nanoTime();
+        boolean success = false;
+        ZipFile zip = new ZipFile(getEntryFile(manifest, ARCHIVE_NAME));
+        try {
+            ZipEntry zipEntry = zip.getEntry(entry.name);
+            if (zipEntry == null) {
+                throw new IOException(entry.name + " is missing from the patch archive");
+            }
+            MessageDigest digest = FileHelper.newSha256();
+            InputStream in = new DigestInputStream(zip.getInputStream(zipEntry), digest);
+            try {
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    FileHelper.copyFile(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (tmp.length() != entry.size
+                    || !entry.digest.equalsIgnoreCase(FileHelper.toHex(digest.digest()))) {
+                throw new IOException(entry.name + " does not match the patch manifest");
+            }
+            tmp.setReadOnly();
+            if (!tmp.renameTo(library)) {
+                throw new IOException("rename " + tmp + " to " + library + " failed");
+            }
+            success = true;
+            return library;
+        } finally {
+            FileHelper.closeQuietly(zip);
+            if (!success) {
+                tmp.delete();
+            }
+            HotfixMetrics.phase(HotfixMetrics.Phase.EXTRACT, start, entry.size, null, success);
+        }
+    }
+
+    private static void moveArchive(File patchFile, File archive) throws IOException {
+        if (patchFile.renameTo(archive)) {
+            return;
+        }
+        // 不在同一个文件系统上时只能复制
+        FileHelper.copyFile(patchFile, archive);
+        if (!patchFile.delete()) {
+            Log.w(Hotfix.TAG, "delete " + patchFile + " failed");
+        }
+    }
+
+    /**
+     * Checks the signature of an archive kept whole in the store and extracts its selected
+     * entries other than the dex files. The dex files are checked where the runtime will map
+     * them from, against the signed digests or, with a signer certificate, against what
+     * {@link PatchExtractor} verified; {@link PatchVerifier} already read them there.
+     *
+     * @param signed the verified {@link SignedDigests} of the archive, or null
+     * @return the archive digest and the extracted entries
+     */
+    private PatchExtractor.Result installArchive(File archive, File destDir, byte[] signerCert,
+                                                 Map<String, String> signed) throws IOException {
+        FileHelper.EntryFilter filter = new FileHelper.EntryFilter() {
+            @Override
+            public boolean accept(String name) {
+                return dexIndex(name) == 0 && extractFilter.accept(name);
+            }
+        };
+        PatchExtractor.Result result;
+        if (signerCert != null) {
+            result = PatchExtractor.extract(archive, destDir, signerCert, filter);
+            signed = result.verified;
+        } else {
+            result = extractSelected(archive, destDir, filter);
+            if (signed == null) {
+                return result;
+            }
+            SignedDigests.check(signed, result.entries);
+        }
+        // 运行时按中央目录找dex, 校验它实际会映射的那段数据
+        List<PatchManifest.Entry> dexEntries = new ArrayList<PatchManifest.Entry>();
+        for (ZipLayout.Entry entry : ZipLayout.read(archive)) {
+            if (dexIndex(entry.name) > 0) {
+                dexEntries.add(new PatchManifest.Entry(entry.name, entry.size,
+                        ZipLayout.sha256(archive, entry)));
+            }
+        }
+        SignedDigests.check(signed, dexEntries);
+        return result;
+    }
+
+    /**
+     * Replaces every extracted {@code classesN.dex.delta} by the dex it rebuilds from the base
+     * apk's {@code classesN.dex}.
+     *
+     * @return the entries with the deltas replaced by the rebuilt dex files
+     */
+    private List<PatchManifest.Entry> applyDeltas(File patchDir, List<PatchManifest.Entry> entries)
+            throws IOException {
+        List<PatchManifest.Entry> result = new ArrayList<PatchManifest.Entry>(entries.size());
+        for (PatchManifest.Entry entry : entries) {
+            if (!entry.name.endsWith(DexDelta.SUFFIX)) {
+                result.add(entry);
+                continue;
+            }
+            String dexName = entry.name.substring(0, entry.name.length() - DexDelta.SUFFIX.length());
+            File deltaFile = new File(patchDir, entry.name);
+            File dexFile = new File(patchDir, dexName);
+            File baseDex = getBaseDex(dexName);
+            long start = System.nanoTime();
+            InputStream in = new FileInputStream(deltaFile);
+            String digest = null;
+            try {
+                digest = DexDelta.apply(baseDex, in, dexFile);
+            } finally {
+                in.close();
+                HotfixMetrics.phase(HotfixMetrics.Phase.DELTA_APPLY, start, dexFile.length(),
+                        null, digest != null);
+            }
+            deltaFile.delete();
+            result.add(new PatchManifest.Entry(dexName, dexFile.length(), digest));
+        }
+        return result;
+    }
+
+    /**
+     * @return {@code dexName} of the base apk, extracted once into {@code hotfix/base} and
+     * reused by later delta patches against the same apk.
+     */
+    private File getBaseDex(String dexName) throws IOException {
+        if (baseApk == null) {
+            throw new IOException("delta patch without a base apk");
+        }
+        ZipFile zip = new ZipFile(baseApk);
+        try {
+            ZipEntry entry = zip.getEntry(dexName);
+            if (entry == null) {
+                throw new IOException(baseApk + " has no " + dexName);
+            }
+            File baseDir = new File(hotfixDir, BASE_DIR);
+            baseDir.mkdirs();
+            File baseDex = new File(baseDir, Long.toHexString(entry.getCrc()) + "-"
+                    + entry.getSize() + "-" + dexName);
+            if (baseDex.length() == entry.getSize()) {
+                HotfixMetrics.count(HotfixMetrics.Counter.BASE_DEX_REUSED);
+                baseDex.setLastModified(System.currentTimeMillis());
+                return baseDex;
+            }
+            File tmp = new File(baseDir, baseDex.getName() + TMP_SUFFIX);
+            InputStream in = zip.getInputStream(entry);
+            try {
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    FileHelper.copyFile(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (!tmp.renameTo(baseDex)) {
+                tmp.delete();
+                throw new IOException("rename " + tmp + " to " + baseDex + " failed");
+            }
+            return baseDex;
+        } finally {
+            FileHelper.closeQuietly(zip);
+        }
+    }
+
+    private PatchExtractor.Result extractSelected(File patchFile, File destDir,
+                                                  FileHelper.EntryFilter filter) throws IOException {
+        Map<String, String> digests = new HashMap<String, String>();
+        List<File> files = FileHelper.unZip(patchFile, destDir, filter, extractThreads,
+                digests);
+        String destPath = destDir.getAbsolutePath() + File.separator;
+        List<PatchManifest.Entry> entries = new ArrayList<PatchManifest.Entry>(files.size());
+        for (File file : files) {
+            String name = file.getAbsolutePath().substring(destPath.length())
+                    .replace(File.separatorChar, '/');
+            entries.add(new PatchManifest.Entry(name, file.length(), digests.get(name)));
+        }
+        return new PatchExtractor.Result(FileHelper.sha256(patchFile), patchFile.length(), entries);
+    }
+}
@@ -0,0 +1,212 @@
+package com.wurq.dex.fixlibrary;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Checks that every entry of a patch archive is signed with the host certificate, spreading the
+ * entries over a bounded pool of workers. Each worker has its own {@link JarFile} and read buffer
+ * because inflating an entry is what makes its certificates available, and that is the cost we
+ * want to run on several cores. The first mismatch stops the remaining workers.
+ */
+final class PatchVerifier {
+
+    private static final String META_INF = "META-INF/";
+
+    private PatchVerifier() {
+    }
+
+    /**
+     * @param threads number of workers, values below 2 verify on the calling thread.
+     * @return true if every entry outside META-INF is signed with {@code signerCert}.
+     */
+    static boolean verify(File patch, byte[] signerCert, int threads) throws IOException {
+        List<JarEntry> toVerify = new ArrayList<JarEntry>();
+        JarFile jarFile = new JarFile(patch);
+        try {
+            Enumeration<JarEntry> i = jarFile.entries();
+            while (i.hasMoreElements()) {
+                final JarEntry entry = i.nextElement();
+                if (entry.isDirectory()) continue;
+                if (entry.getName().startsWith(META_INF)) continue;
+                toVerify.add(entry);
+            }
+            if (toVerify.isEmpty()) {
+                return false;
+            }
+            if (threads < 2 || toVerify.size() < 2) {
+                return verifyEntries(jarFile, names(toVerify), signerCert, new AtomicBoolean());
+            }
+        } finally {
+            FileHelper.closeQuietly(jarFile);
+        }
+        return verifyParallel(patch, partition(toVerify, threads), signerCert);
+    }
+
+    private static boolean verifyParallel(final File patch, List<List<String>> chunks,
+                                          final byte[] signerCert) throws IOException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(chunks.size(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hotfix-verify-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        try {
+            for (final List<String> chunk : chunks) {
+                futures.add(completion.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        JarFile jarFile = new JarFile(patch);
+                        try {
+                            return verifyEntries(jarFile, chunk, signerCert, stop);
+                        } finally {
+                            FileHelper.closeQuietly(jarFile);
+                        }
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                if (!completion.take().get()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            Log.e(Hotfix.TAG, "verify " + patch + " failed", cause);
+            return false;
+        } finally {
+            stop.set(true);
+            for (Future<Boolean> future : futures) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks {@code names} with a read buffer taken from the {@link FileHelper} pool, so
+     * repeated checks do not allocate one per call.
+     */
+    private static boolean verifyEntries(JarFile jarFile, List<String> names, byte[] signerCert,
+                                         AtomicBoolean stop) throws IOException {
+        byte[] readBuffer = FileHelper.obtainBuffer();
+        try {
+            for (String name : names) {
+                if (stop.get()) {
+                    return false;
+                }
+                JarEntry entry = jarFile.getJarEntry(name);
+                final Certificate[] entryCerts = loadCertificates(jarFile, entry, readBuffer);
+                if (entryCerts == null || entryCerts.length == 0 || entryCerts[0] == null) {
+                    stop.set(true);
+                    return false;
+                }
+                try {
+                    if (!Arrays.equals(signerCert, entryCerts[0].getEncoded())) {
+                        stop.set(true);
+                        return false;
+                    }
+                } catch (CertificateEncodingException e) {
+                    stop.set(true);
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            FileHelper.recycleBuffer(readBuffer);
+        }
+    }
+
+    private static Certificate[] loadCertificates(JarFile jarFile, JarEntry je, byte[] readBuffer)
+            throws IOException {
+        InputStream is = jarFile.getInputStream(je);
+        try {
+            while (is.read(readBuffer, 0, readBuffer.length) != -1) {
+            }
+        } catch (SecurityException e) {
+            Log.e(Hotfix.TAG, "Exception reading " + je.getName() + " in " + jarFile.getName(), e);
+            return null;
+        } finally {
+            is.close();
+        }
+        return je.getCertificates();
+    }
+
+    /**
+     * Hands the largest entries out first, each to the currently least loaded worker, so the
+     * workers finish at about the same time even when one entry (classes.dex) dominates.
+     */
+    static List<List<String>> partition(List<JarEntry> entries, int threads) {
+        List<JarEntry> sorted = new ArrayList<JarEntry>(entries);
+        Collections.sort(sorted, new Comparator<JarEntry>() {
+            @Override
+            public int compare(JarEntry lhs, JarEntry rhs) {
+                long l = lhs.getSize();
+                long r = rhs.getSize();
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        int count = Math.min(threads, sorted.size());
+        List<List<String>> chunks = new ArrayList<List<String>>(count);
+        long[] loads = new long[count];
+        for (int i = 0; i < count; i++) {
+            chunks.add(new ArrayList<String>());
+        }
+        for (JarEntry entry : sorted) {
+            int target = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[target]) {
+                    target = i;
+                }
+            }
+            chunks.get(target).add(entry.getName());
+            loads[target] += Math.max(entry.getSize(), 1);
+        }
+        return chunks;
+    }
+
+    private static List<String> names(List<JarEntry> entries) {
+        List<String> names = new ArrayList<String>(entries.size());
+        for (JarEntry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+}
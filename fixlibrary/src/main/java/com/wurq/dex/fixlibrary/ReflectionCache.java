@@ -0,0 +1,173 @@
+package com.wurq.dex.fixlibrary;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves fields, methods and constructors of the runtime's class loader internals once per
+ * runtime class. {@code pathList}, {@code dexElements}, {@code makePathElements} and friends are
+ * looked up by walking the class hierarchy with {@code getDeclaredField}/{@code getDeclaredMethod},
+ * throwing and swallowing an exception at each level, which is too slow to repeat for every
+ * patch or plugin loaded during startup.
+ */
+public final class ReflectionCache {
+
+    private static final ConcurrentHashMap<Key, Member> sMembers =
+            new ConcurrentHashMap<Key, Member>();
+
+    private static final AtomicLong sResolveNanos = new AtomicLong();
+    private static final AtomicLong sHits = new AtomicLong();
+    private static final AtomicLong sMisses = new AtomicLong();
+
+    private ReflectionCache() {
+    }
+
+    /**
+     * @return total time spent resolving members that were not cached yet
+     */
+    public static long getResolveNanos() {
+        return sResolveNanos.get();
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public static long getHitCount() {
+        return sHits.get();
+    }
+
+    /**
+     * @return number of lookups that had to walk the class hierarchy
+     */
+    public static long getMissCount() {
+        return sMisses.get();
+    }
+
+    /**
+     * Locates a given field anywhere in the class inheritance hierarchy of {@code type}.
+     */
+    static Field findField(Class<?> type, String name) throws NoSuchFieldException {
+        Key key = new Key(type, name, null);
+        Member cached = sMembers.get(key);
+        if (cached != null) {
+            sHits.incrementAndGet();
+            return (Field) cached;
+        }
+        long start = System.nanoTime();
+        try {
+            for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+                try {
+                    Field field = clazz.getDeclaredField(name);
+
+                    if (!field.isAccessible()) {
+                        field.setAccessible(true);
+                    }
+
+                    sMembers.put(key, field);
+                    return field;
+                } catch (NoSuchFieldException e) {
+                }
+            }
+        } finally {
+            sMisses.incrementAndGet();
+            sResolveNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        throw new NoSuchFieldException("Field " + name + " not found in " + type);
+    }
+
+    /**
+     * Locates a given method anywhere in the class inheritance hierarchy of {@code type}.
+     */
+    static Method findMethod(Class<?> type, String name, Class<?>... parameterTypes)
+            throws NoSuchMethodException {
+        Key key = new Key(type, name, parameterTypes);
+        Member cached = sMembers.get(key);
+        if (cached != null) {
+            sHits.incrementAndGet();
+            return (Method) cached;
+        }
+        long start = System.nanoTime();
+        try {
+            for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+                try {
+                    Method method = clazz.getDeclaredMethod(name, parameterTypes);
+
+                    if (!method.isAccessible()) {
+                        method.setAccessible(true);
+                    }
+
+                    sMembers.put(key, method);
+                    return method;
+                } catch (NoSuchMethodException e) {
+                }
+            }
+        } finally {
+            sMisses.incrementAndGet();
+            sResolveNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        throw new NoSuchMethodException("Method " + name + " with parameters " +
+                Arrays.asList(parameterTypes) + " not found in " + type);
+    }
+
+    /**
+     * Locates a public constructor of {@code type}.
+     */
+    static Constructor<?> findConstructor(Class<?> type, Class<?>... parameterTypes)
+            throws NoSuchMethodException {
+        Key key = new Key(type, "<init>", parameterTypes);
+        Member cached = sMembers.get(key);
+        if (cached != null) {
+            sHits.incrementAndGet();
+            return (Constructor<?>) cached;
+        }
+        long start = System.nanoTime();
+        try {
+            Constructor<?> constructor = type.getConstructor(parameterTypes);
+            if (!constructor.isAccessible()) {
+                constructor.setAccessible(true);
+            }
+            sMembers.put(key, constructor);
+            return constructor;
+        } finally {
+            sMisses.incrementAndGet();
+            sResolveNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static final class Key {
+        private final Class<?> type;
+        private final String name;
+        private final Class<?>[] parameterTypes;
+        private final int hash;
+
+        Key(Class<?> type, String name, Class<?>[] parameterTypes) {
+            this.type = type;
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+            this.hash = 31 * (31 * type.hashCode() + name.hashCode())
+                    + Arrays.hashCode(parameterTypes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return type == other.type && name.equals(other.name)
+                    && Arrays.equals(parameterTypes, other.parameterTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -4,6 +4,8 @@ package com.wurq.dex.fixlibrary;
  * Created by wurongqiu on 17/3/2.
  */
 public class SignVerifyPatchFailedException  extends RuntimeException{
+    private static final long serialVersionUID = 1L;
+
     SignVerifyPatchFailedException(String msg) {
         super(msg);
     }
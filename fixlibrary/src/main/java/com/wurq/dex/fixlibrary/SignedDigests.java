@@ -0,0 +1,276 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Signature mode where the patch carries one list of entry digests signed once with the app's
+ * key, instead of a jar signature checked entry by entry. Checking it is one signature
+ * verification over a few KB plus hashing the entries that are extracted anyway; the other
+ * entries are never inflated.
+ * <pre>
+ * META-INF/HOTFIX.DIGESTS   hotfix-digests 1
+ *                           &lt;sha256&gt; &lt;entry name&gt;
+ *                           ...
+ * META-INF/HOTFIX.SIG       SHA256withRSA (or SHA256withECDSA) signature of HOTFIX.DIGESTS
+ * </pre>
+ * {@link #sign} adds both entries to a patch on the build machine.
+ */
+public final class SignedDigests {
+
+    static final String DIGESTS_ENTRY = "META-INF/HOTFIX.DIGESTS";
+
+    static final String SIGNATURE_ENTRY = "META-INF/HOTFIX.SIG";
+
+    private static final String HEADER = "hotfix-digests 1";
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final String META_INF = "META-INF/";
+
+    /**
+     * Upper bound on the size of the two entries, they are read into memory.
+     */
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private SignedDigests() {
+    }
+
+    /**
+     * Reads the signed digest list of {@code patch} and checks its signature.
+     *
+     * @return SHA-256 hex by entry name
+     * @throws SignVerifyPatchFailedException if the list is missing, malformed, names an entry
+     *                                        twice or is not signed by {@code key}
+     */
+    static Map<String, String> verify(File patch, PublicKey key) throws IOException {
+        byte[] digests;
+        byte[] signature;
+        ZipFile zip = new ZipFile(patch);
+        try {
+            digests = readEntry(zip, DIGESTS_ENTRY);
+            signature = readEntry(zip, SIGNATURE_ENTRY);
+        } finally {
+            FileHelper.closeQuietly(zip);
+        }
+        try {
+            Signature verifier = Signature.getInstance(algorithm(key));
+            verifier.initVerify(key);
+            verifier.update(digests);
+            if (!verifier.verify(signature)) {
+                throw new SignVerifyPatchFailedException(patch + " digests are not signed by the app key");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new SignVerifyPatchFailedException(patch + " digests signature: " + e);
+        }
+        return parse(patch, new String(digests, CHARSET));
+    }
+
+    /**
+     * @throws SignVerifyPatchFailedException if an extracted entry is not in the signed list or
+     *                                        its content does not match the signed digest
+     */
+    static void check(Map<String, String> signed, List<PatchManifest.Entry> extracted) {
+        for (PatchManifest.Entry entry : extracted) {
+            String expected = signed.get(entry.name);
+            if (expected == null) {
+                throw new SignVerifyPatchFailedException(entry.name + " is not in the signed digests");
+            }
+            if (!expected.equalsIgnoreCase(entry.digest)) {
+                throw new SignVerifyPatchFailedException(entry.name + " does not match its signed digest");
+            }
+        }
+    }
+
+    /**
+     * Writes {@code source} to {@code dest} with the digest list of every entry outside
+     * META-INF, signed with {@code key}, added in front. Meant for the machine building patches.
+     * Entries keep their compression method, and {@link ZipEntry#STORED} ones are padded to
+     * {@link ZipLayout#DEX_ALIGNMENT} like {@code zipalign} does, so an uncompressed dex can
+     * still be loaded without extracting it.
+     *
+     * @throws ZipException if {@code source} has two entries with the same name
+     */
+    public static void sign(File source, File dest, PrivateKey key) throws IOException,
+            GeneralSecurityException {
+        Map<String, String> digests = new LinkedHashMap<String, String>();
+        List<ZipEntry> entries = new ArrayList<ZipEntry>();
+        Set<String> names = new HashSet<String>();
+        byte[] buffer = FileHelper.obtainBuffer();
+        ZipFile zip = new ZipFile(source);
+        try {
+            Enumeration<? extends ZipEntry> all = zip.entries();
+            while (all.hasMoreElements()) {
+                ZipEntry entry = all.nextElement();
+                String name = entry.getName();
+                if (!names.add(name)) {
+                    throw new ZipException("entry " + name + " appears twice: " + source);
+                }
+                if (name.equals(DIGESTS_ENTRY) || name.equals(SIGNATURE_ENTRY)) {
+                    continue;
+                }
+                entries.add(entry);
+                if (entry.isDirectory() || name.startsWith(META_INF)) {
+                    continue;
+                }
+                MessageDigest digest = FileHelper.newSha256();
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+                digests.put(name, FileHelper.toHex(digest.digest()));
+            }
+
+            StringBuilder text = new StringBuilder(HEADER).append('\n');
+            for (Map.Entry<String, String> entry : digests.entrySet()) {
+                text.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+            }
+            byte[] digestsBytes = text.toString().getBytes(CHARSET);
+            Signature signer = Signature.getInstance(algorithm(key));
+            signer.initSign(key);
+            signer.update(digestsBytes);
+            byte[] signature = signer.sign();
+
+            // ZipOutputStream直接写文件, 文件位置就是下一个本地头的偏移
+            FileOutputStream file = new FileOutputStream(dest);
+            ZipOutputStream out = new ZipOutputStream(file);
+            try {
+                out.putNextEntry(new ZipEntry(DIGESTS_ENTRY));
+                out.write(digestsBytes);
+                out.closeEntry();
+                out.putNextEntry(new ZipEntry(SIGNATURE_ENTRY));
+                out.write(signature);
+                out.closeEntry();
+
+                for (ZipEntry entry : entries) {
+                    ZipEntry copy = copyOf(entry, file.getChannel().position());
+                    out.putNextEntry(copy);
+                    if (copy.getMethod() == ZipEntry.STORED
+                            && file.getChannel().position() % ZipLayout.DEX_ALIGNMENT != 0) {
+                        throw new ZipException("could not align " + copy.getName());
+                    }
+                    InputStream in = zip.getInputStream(entry);
+                    try {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    out.closeEntry();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            FileHelper.closeQuietly(zip);
+            FileHelper.recycleBuffer(buffer);
+        }
+    }
+
+    /**
+     * @param headerOffset where the local header of the copy will be written
+     * @return a new entry with the name, time and method of {@code entry}; a
+     * {@link ZipEntry#STORED} one also gets its size and CRC and an extra field of zeros that
+     * puts its data on a multiple of {@link ZipLayout#DEX_ALIGNMENT}
+     */
+    private static ZipEntry copyOf(ZipEntry entry, long headerOffset) throws IOException {
+        ZipEntry copy = new ZipEntry(entry.getName());
+        copy.setTime(entry.getTime());
+        copy.setMethod(entry.getMethod());
+        if (entry.getMethod() == ZipEntry.STORED) {
+            copy.setSize(entry.getSize());
+            copy.setCompressedSize(entry.getSize());
+            copy.setCrc(entry.getCrc());
+            long dataOffset = headerOffset + ZipLayout.LOCAL_HEADER_SIZE
+                    + entry.getName().getBytes(CHARSET).length;
+            int padding = (int) ((ZipLayout.DEX_ALIGNMENT
+                    - dataOffset % ZipLayout.DEX_ALIGNMENT) % ZipLayout.DEX_ALIGNMENT);
+            if (padding > 0) {
+                copy.setExtra(new byte[padding]);
+            }
+        }
+        return copy;
+    }
+
+    private static String algorithm(Key key) {
+        return "EC".equals(key.getAlgorithm()) ? "SHA256withECDSA"
+                : "SHA256with" + key.getAlgorithm();
+    }
+
+    private static byte[] readEntry(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new SignVerifyPatchFailedException(zip.getName() + " has no " + name);
+        }
+        if (entry.getSize() > MAX_ENTRY_SIZE) {
+            throw new SignVerifyPatchFailedException(name + " is too large");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = zip.getInputStream(entry);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (out.size() > MAX_ENTRY_SIZE) {
+                    throw new SignVerifyPatchFailedException(name + " is too large");
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> parse(File patch, String text) {
+        String[] lines = text.split("\n");
+        if (lines.length == 0 || !HEADER.equals(lines[0])) {
+            throw new SignVerifyPatchFailedException(patch + " has an unknown digests format");
+        }
+        Map<String, String> digests = new HashMap<String, String>();
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].length() == 0) {
+                continue;
+            }
+            int space = lines[i].indexOf(' ');
+            if (space <= 0) {
+                throw new SignVerifyPatchFailedException(patch + " digests line " + i + " is malformed");
+            }
+            String name = lines[i].substring(space + 1);
+            if (digests.put(name, lines[i].substring(0, space)) != null) {
+                throw new SignVerifyPatchFailedException(
+                        "entry " + name + " appears twice in the digests of " + patch);
+            }
+        }
+        return digests;
+    }
+}
@@ -0,0 +1,198 @@
+package com.wurq.dex.fixlibrary;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps {@code files/hotfix} and {@code files/optdex} within a byte budget.
+ *
+ * The artifacts are the stored patches, each with its optimized output, and the base dex files
+ * extracted for delta patches. A patch is used when a slot is pointed at it or it is loaded,
+ * a base dex when a delta is applied to it; the time of last use is the modification time of
+ * the patch's manifest or of the base dex, so it is shared by all processes. {@link #trim}
+ * evicts the least recently used artifacts until the total fits the budget. The patches the
+ * slots name and the ones loaded by this process are never evicted, even if they alone exceed
+ * the budget.
+ *
+ * Patches that are kept, although no slot names them, cost nothing when the same patch comes
+ * again, e.g. on a rollback: {@link PatchStore#install} finds it in the store.
+ */
+final class StorageManager {
+
+    /**
+     * Room for a few patches of an app of average size, with their optimized output.
+     */
+    static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * Something that is evicted as a whole.
+     */
+    static final class Artifact {
+        final String name;
+        final File[] files;
+        final long size;
+        final long lastUsed;
+
+        Artifact(String name, File[] files, long lastUsed) {
+            this.name = name;
+            this.files = files;
+            long total = 0;
+            for (File file : files) {
+                total += FileHelper.sizeOf(file);
+            }
+            this.size = total;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final PatchStore store;
+    private final long budget;
+
+    StorageManager(PatchStore store, long budget) {
+        this.store = store;
+        this.budget = budget;
+    }
+
+    /**
+     * Deletes what does not belong in the store, then evicts unused patches and base dex files,
+     * least recently used first, until the store fits the budget. Call it with the store lock
+     * held exclusively and no patch being prepared.
+     *
+     * @param loaded digests of patches this process has loaded, kept like the slots' ones
+     * @return bytes freed by eviction
+     */
+    long trim(Collection<String> loaded) {
+        Set<String> pinned = new HashSet<String>(loaded);
+        String active = store.readSlot(PatchStore.ACTIVE_SLOT);
+        String staging = store.readSlot(PatchStore.STAGING_SLOT);
+        if (active != null) {
+            pinned.add(active);
+        }
+        if (staging != null) {
+            pinned.add(staging);
+        }
+
+        List<Artifact> artifacts = new ArrayList<Artifact>();
+        long total = collect(pinned, artifacts);
+        if (total <= budget) {
+            return 0;
+        }
+        Collections.sort(artifacts, new Comparator<Artifact>() {
+            @Override
+            public int compare(Artifact a, Artifact b) {
+                return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+            }
+        });
+        long freed = 0;
+        for (Artifact artifact : artifacts) {
+            if (total - freed <= budget) {
+                break;
+            }
+            boolean deleted = true;
+            for (File file : artifact.files) {
+                deleted &= FileHelper.deleteDir(file) || !file.exists();
+            }
+            if (deleted) {
+                freed += artifact.size;
+                HotfixMetrics.count(HotfixMetrics.Counter.EVICTED);
+            } else {
+                Log.w(Hotfix.TAG, "evict " + artifact.name + " failed");
+            }
+        }
+        Log.d(Hotfix.TAG, "patch store " + total + " bytes, evicted " + freed);
+        return freed;
+    }
+
+    /**
+     * Lists the evictable artifacts into {@code artifacts} and deletes the leftovers no manifest
+     * accounts for.
+     *
+     * @return bytes used by the store, pinned patches included
+     */
+    private long collect(Set<String> pinned, List<Artifact> artifacts) {
+        long total = 0;
+        Set<String> patches = new HashSet<String>();
+        File hotfixDir = store.getHotfixDir();
+        File[] files = hotfixDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.equals(PatchStore.BASE_DIR)) {
+                    total += collectBaseDex(file, artifacts);
+                    continue;
+                }
+                if (name.endsWith(TMP_SUFFIX) || isStoreFile(name)) {
+                    total += FileHelper.sizeOf(file);
+                    continue;
+                }
+                File manifest = new File(file, PatchManifest.FILE_NAME);
+                if (!manifest.isFile()) {
+                    // 旧版本的文件或者中断的安装留下的
+                    FileHelper.deleteDir(file);
+                    continue;
+                }
+                patches.add(name);
+                Artifact patch = new Artifact(name,
+                        new File[]{file, new File(store.getOptRootDir(), name)},
+                        manifest.lastModified());
+                total += patch.size;
+                if (!pinned.contains(name)) {
+                    artifacts.add(patch);
+                }
+            }
+        }
+
+        files = store.getOptRootDir().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isDirectory()) {
+                    // hack.apk的优化输出
+                    total += file.length();
+                } else if (!patches.contains(file.getName())) {
+                    FileHelper.deleteDir(file);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return true for the files of the store that are not artifacts: the slot pointers,
+     * {@code hack.apk}, the signature verdicts and the lock files
+     */
+    private static boolean isStoreFile(String name) {
+        return name.equals(PatchStore.ACTIVE_SLOT) || name.equals(PatchStore.STAGING_SLOT)
+                || name.equals(Hotfix.HACK_DEX) || name.equals(VerdictCache.FILE_NAME)
+                || name.equals(VerdictCache.KEY_FILE_NAME) || name.equals(StoreLock.STORE_LOCK)
+                || name.equals(StoreLock.PREPARE_LOCK);
+    }
+
+    private static long collectBaseDex(File baseDir, List<Artifact> artifacts) {
+        long total = 0;
+        File[] files = baseDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                total += file.length();
+                continue;
+            }
+            Artifact baseDex = new Artifact(PatchStore.BASE_DIR + File.separator + file.getName(),
+                    new File[]{file}, file.lastModified());
+            total += baseDex.size;
+            artifacts.add(baseDex);
+        }
+        return total;
+    }
+}
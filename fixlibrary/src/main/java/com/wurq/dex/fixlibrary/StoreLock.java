@@ -0,0 +1,171 @@
+package com.wurq.dex.fixlibrary;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Reader/writer lock over a lock file, shared by the threads of this process and by every other
+ * process of the app ({@code :push}, {@code :remote} ...) that runs the hotfix code on start.
+ *
+ * Threads are ordered by a {@link ReentrantReadWriteLock}; processes by a {@link FileLock} on the
+ * file, which the kernel drops if the process dies, so a crash never leaves the store locked.
+ * The readers of one process share a single shared file lock. Every wait is bounded: the lock
+ * methods give up and return false after the timeout, and the caller decides whether to go on
+ * read-only or to skip its work. The lock is not reentrant.
+ */
+final class StoreLock {
+
+    /**
+     * Guards the slots and the patch directories they name: held shared while a patch is looked
+     * up and loaded, exclusive while a slot is switched or patches are deleted. Only held for
+     * short sections, so a start never waits for a patch being prepared.
+     */
+    static final String STORE_LOCK = "store.lock";
+
+    /**
+     * Held exclusive for the whole preparation of a patch, so only one process extracts and
+     * optimizes it; taken before {@link #STORE_LOCK} when both are needed.
+     */
+    static final String PREPARE_LOCK = "prepare.lock";
+
+    private static final long POLL_MILLIS = 20;
+
+    private static final Map<String, StoreLock> sLocks = new HashMap<String, StoreLock>();
+
+    private final File file;
+    private final ReentrantReadWriteLock threadLock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private FileLock fileLock;
+    private int sharedHolders;
+
+    private StoreLock(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the lock over {@code file}, one instance per path in this process
+     */
+    static StoreLock get(File file) {
+        String path = file.getAbsolutePath();
+        synchronized (sLocks) {
+            StoreLock lock = sLocks.get(path);
+            if (lock == null) {
+                lock = new StoreLock(file);
+                sLocks.put(path, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * @return false if the lock could not be taken within {@code timeoutMillis}
+     */
+    boolean lockShared(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        if (!tryLock(threadLock.readLock(), timeoutMillis)) {
+            return false;
+        }
+        synchronized (this) {
+            if (sharedHolders == 0 && !lockFile(true, deadline)) {
+                threadLock.readLock().unlock();
+                return false;
+            }
+            sharedHolders++;
+        }
+        return true;
+    }
+
+    void unlockShared() {
+        synchronized (this) {
+            if (--sharedHolders == 0) {
+                releaseFile();
+            }
+        }
+        threadLock.readLock().unlock();
+    }
+
+    /**
+     * @return false if the lock could not be taken within {@code timeoutMillis}
+     */
+    boolean lockExclusive(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        if (!tryLock(threadLock.writeLock(), timeoutMillis)) {
+            return false;
+        }
+        synchronized (this) {
+            if (!lockFile(false, deadline)) {
+                threadLock.writeLock().unlock();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void unlockExclusive() {
+        synchronized (this) {
+            releaseFile();
+        }
+        threadLock.writeLock().unlock();
+    }
+
+    private static boolean tryLock(Lock lock, long timeoutMillis) {
+        try {
+            return lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * FileChannel has no timed lock, so the file lock is polled until the deadline. If the file
+     * system does not support locks at all, only the threads of this process are ordered.
+     */
+    private boolean lockFile(boolean shared, long deadline) {
+        try {
+            if (channel == null) {
+                file.getParentFile().mkdirs();
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            while (true) {
+                fileLock = channel.tryLock(0, Long.MAX_VALUE, shared);
+                if (fileLock != null) {
+                    return true;
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                Thread.sleep(Math.min(left, POLL_MILLIS));
+            }
+        } catch (IOException e) {
+            Log.w(Hotfix.TAG, "lock " + file + " failed, only this process is excluded", e);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void releaseFile() {
+        if (fileLock == null) {
+            return;
+        }
+        try {
+            fileLock.release();
+        } catch (IOException e) {
+            Log.w(Hotfix.TAG, "release " + file + " failed", e);
+        }
+        fileLock = null;
+    }
+}
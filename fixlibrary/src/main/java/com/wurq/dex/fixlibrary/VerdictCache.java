@@ -0,0 +1,210 @@
+package com.wurq.dex.fixlibrary;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Remembers which patches passed the signature check, so a patch seen again skips the jar walk.
+ *
+ * A verdict is keyed by the patch digest, the patch size and the SHA-256 of the host signing
+ * certificate; an app update signed with another key invalidates every verdict. Each line is
+ * sealed with an HMAC-SHA256 under a random key created on first use, so a verdict copied from
+ * another install, or damaged on disk, does not count. The key is kept in
+ * {@link #KEY_FILE_NAME} next to the verdicts: whoever can write the hotfix directory can also
+ * read it and seal verdicts of their own, but could then replace the patch files as well. The
+ * cache is no defence against that. Only positive verdicts are kept, the most recent
+ * {@link #MAX_VERDICTS}.
+ * <pre>
+ * &lt;patch sha256&gt; &lt;size&gt; &lt;cert sha256&gt; &lt;hmac&gt;
+ * </pre>
+ */
+final class VerdictCache {
+
+    static final String FILE_NAME = "verdicts";
+
+    static final String KEY_FILE_NAME = "verdicts.key";
+
+    private static final int MAX_VERDICTS = 8;
+
+    private static final int KEY_LENGTH = 32;
+
+    private static final String HMAC = "HmacSHA256";
+
+    private static final String CHARSET = "US-ASCII";
+
+    private final File file;
+    private final File keyFile;
+
+    VerdictCache(File dir) {
+        this.file = new File(dir, FILE_NAME);
+        this.keyFile = new File(dir, KEY_FILE_NAME);
+    }
+
+    /**
+     * @return true if the patch was recorded as signed with the certificate whose SHA-256 is
+     * {@code certDigest}
+     */
+    boolean isVerified(String patchDigest, long patchSize, String certDigest) {
+        if (!file.isFile() || !keyFile.isFile()) {
+            return false;
+        }
+        try {
+            Mac mac = newMac(false);
+            if (mac == null) {
+                return false;
+            }
+            String key = key(patchDigest, patchSize, certDigest);
+            for (String line : readLines()) {
+                int seal = line.lastIndexOf(' ');
+                if (seal > 0 && line.substring(0, seal).equals(key)) {
+                    return MessageDigest.isEqual(seal(mac, key).getBytes(CHARSET),
+                            line.substring(seal + 1).getBytes(CHARSET));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(Hotfix.TAG, "read " + file + " failed", e);
+        } catch (GeneralSecurityException e) {
+            Log.w(Hotfix.TAG, "check verdict failed", e);
+        }
+        return false;
+    }
+
+    /**
+     * Records that the patch is signed with the certificate whose SHA-256 is {@code certDigest}.
+     */
+    void record(String patchDigest, long patchSize, String certDigest) {
+        try {
+            Mac mac = newMac(true);
+            String key = key(patchDigest, patchSize, certDigest);
+            List<String> lines = new ArrayList<String>();
+            lines.add(key + " " + seal(mac, key));
+            for (String line : readLines()) {
+                if (lines.size() >= MAX_VERDICTS) {
+                    break;
+                }
+                if (!line.startsWith(key + " ")) {
+                    lines.add(line);
+                }
+            }
+            File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), CHARSET);
+            try {
+                for (String line : lines) {
+                    writer.write(line + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("rename " + tmp + " to " + file + " failed");
+            }
+        } catch (IOException e) {
+            Log.w(Hotfix.TAG, "record verdict for " + patchDigest + " failed", e);
+        } catch (GeneralSecurityException e) {
+            Log.w(Hotfix.TAG, "record verdict for " + patchDigest + " failed", e);
+        }
+    }
+
+    private static String key(String patchDigest, long patchSize, String certDigest) {
+        return patchDigest + " " + patchSize + " " + certDigest;
+    }
+
+    private static String seal(Mac mac, String key) throws IOException {
+        return FileHelper.toHex(mac.doFinal(key.getBytes(CHARSET)));
+    }
+
+    private List<String> readLines() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        if (!file.isFile()) {
+            return lines;
+        }
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), CHARSET));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * @param create whether to create the key if there is none yet
+     * @return a MAC under the install's key, or null if there is no key and create is false
+     */
+    private Mac newMac(boolean create) throws IOException, GeneralSecurityException {
+        byte[] key = readKey();
+        if (key == null) {
+            if (!create) {
+                return null;
+            }
+            key = new byte[KEY_LENGTH];
+            new SecureRandom().nextBytes(key);
+            writeKey(key);
+            file.delete();
+        }
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(key, HMAC));
+        return mac;
+    }
+
+    private byte[] readKey() throws IOException {
+        if (keyFile.length() != KEY_LENGTH) {
+            return null;
+        }
+        byte[] key = new byte[KEY_LENGTH];
+        InputStream in = new FileInputStream(keyFile);
+        try {
+            int read = 0;
+            while (read < KEY_LENGTH) {
+                int n = in.read(key, read, KEY_LENGTH - read);
+                if (n == -1) {
+                    return null;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return key;
+    }
+
+    private void writeKey(byte[] key) throws IOException {
+        keyFile.getParentFile().mkdirs();
+        File tmp = new File(keyFile.getParentFile(), KEY_FILE_NAME + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(key);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(keyFile)) {
+            tmp.delete();
+            throw new IOException("rename " + tmp + " to " + keyFile + " failed");
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip to find where each entry's data starts in the file, which
+ * {@link java.util.zip.ZipFile} does not tell. An uncompressed ({@link ZipEntry#STORED}) dex
+ * whose data is aligned can be mapped by the runtime straight out of the archive, so such a
+ * patch is loaded without extracting it, see {@link PatchStore}.
+ *
+ * Zip64 archives and archives with a comment longer than the search window are not supported;
+ * {@link #read} throws and the caller falls back to extraction.
+ */
+final class ZipLayout {
+
+    /**
+     * Alignment the runtime needs to use an uncompressed dex in place, what {@code zipalign 4}
+     * produces.
+     */
+    static final int DEX_ALIGNMENT = 4;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT = 0xffff;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    static final int LOCAL_HEADER_SIZE = 30;
+
+    static final class Entry {
+        final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long dataOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long dataOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.dataOffset = dataOffset;
+        }
+
+        boolean isStoredAndAligned(int alignment) {
+            return method == ZipEntry.STORED && compressedSize == size
+                    && dataOffset % alignment == 0;
+        }
+    }
+
+    private ZipLayout() {
+    }
+
+    /**
+     * @return every entry of {@code zip} in central directory order
+     */
+    static List<Entry> read(File zip) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(zip, "r");
+        try {
+            long length = raf.length();
+            int window = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT);
+            byte[] tail = new byte[window];
+            raf.seek(length - window);
+            raf.readFully(tail);
+            int eocd = -1;
+            for (int i = window - EOCD_SIZE; i >= 0; i--) {
+                if (int32(tail, i) == EOCD_SIGNATURE) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                throw new IOException(zip + " has no end of central directory");
+            }
+            int count = int16(tail, eocd + 10);
+            long centralSize = int32(tail, eocd + 12) & 0xffffffffL;
+            long centralOffset = int32(tail, eocd + 16) & 0xffffffffL;
+            if (count == 0xffff || centralOffset == 0xffffffffL
+                    || centralOffset + centralSize > length) {
+                throw new IOException(zip + " is a zip64 archive or corrupt");
+            }
+
+            byte[] central = new byte[(int) centralSize];
+            raf.seek(centralOffset);
+            raf.readFully(central);
+            List<Entry> entries = new ArrayList<Entry>(count);
+            byte[] local = new byte[LOCAL_HEADER_SIZE];
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                if (pos + CENTRAL_HEADER_SIZE > central.length
+                        || int32(central, pos) != CENTRAL_SIGNATURE) {
+                    throw new IOException(zip + " central directory entry " + i + " is corrupt");
+                }
+                int method = int16(central, pos + 10);
+                long compressedSize = int32(central, pos + 20) & 0xffffffffL;
+                long size = int32(central, pos + 24) & 0xffffffffL;
+                int nameLength = int16(central, pos + 28);
+                int extraLength = int16(central, pos + 30);
+                int commentLength = int16(central, pos + 32);
+                long localOffset = int32(central, pos + 42) & 0xffffffffL;
+                if (pos + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength
+                        > central.length) {
+                    throw new ZipException(zip + " central directory entry " + i
+                            + " runs past its end");
+                }
+                String name = new String(central, pos + CENTRAL_HEADER_SIZE, nameLength, "UTF-8");
+                pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+                raf.seek(localOffset);
+                raf.readFully(local);
+                if (int32(local, 0) != LOCAL_SIGNATURE) {
+                    throw new IOException(zip + " local header of " + name + " is corrupt");
+                }
+                long dataOffset = localOffset + LOCAL_HEADER_SIZE + int16(local, 26)
+                        + int16(local, 28);
+                if (dataOffset + compressedSize > length) {
+                    throw new IOException(zip + " data of " + name + " runs past the end");
+                }
+                entries.add(new Entry(name, method, compressedSize, size, dataOffset));
+            }
+            return entries;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return hex SHA-256 of the uncompressed data of a {@link ZipEntry#STORED} entry
+     */
+    static String sha256(File zip, Entry entry) throws IOException {
+        MessageDigest digest = FileHelper.newSha256();
+        byte[] buffer = FileHelper.obtainBuffer();
+        RandomAccessFile raf = new RandomAccessFile(zip, "r");
+        try {
+            raf.seek(entry.dataOffset);
+            for (long left = entry.size; left > 0; ) {
+                int read = raf.read(buffer, 0, (int) Math.min(left, buffer.length));
+                if (read == -1) {
+                    throw new IOException(zip + " ended inside " + entry.name);
+                }
+                digest.update(buffer, 0, read);
+                left -= read;
+            }
+        } finally {
+            raf.close();
+            FileHelper.recycleBuffer(buffer);
+        }
+        return FileHelper.toHex(digest.digest());
+    }
+
+    private static int int16(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    private static int int32(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16
+                | (b[off + 3] & 0xff) << 24;
+    }
+}
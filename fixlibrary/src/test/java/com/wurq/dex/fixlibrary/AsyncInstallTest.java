@@ -0,0 +1,155 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncInstallTest {
+
+    @Test
+    public void loadsPatchReadyBeforeDeadline() throws Exception {
+        Install install = new Install(1000, new CountDownLatch(0), true, Hotfix.Outcome.APPLIED);
+        install.run();
+        assertTrue(install.isDone());
+        assertEquals(Hotfix.Outcome.APPLIED, install.get());
+        assertEquals(Collections.singletonList(true), install.loads);
+        assertEquals(Collections.singletonList(Hotfix.Outcome.APPLIED), install.outcomes);
+    }
+
+    @Test
+    public void defersPatchLateForDeadline() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Install install = new Install(50, release, true, Hotfix.Outcome.APPLIED);
+        Thread worker = new Thread(install);
+        worker.start();
+
+        assertEquals(Hotfix.Outcome.DEFERRED, install.get());
+        release.countDown();
+        worker.join();
+        // 只在等待的线程里加载一次, 不切换暂存的补丁
+        assertEquals(Collections.singletonList(false), install.loads);
+        assertEquals(Collections.singletonList(Hotfix.Outcome.DEFERRED), install.outcomes);
+    }
+
+    @Test
+    public void loadsNothingAfterDeadlineWithoutWaiter() throws Exception {
+        Install install = new Install(0, new CountDownLatch(0), true, Hotfix.Outcome.APPLIED);
+        install.run();
+        assertEquals(Hotfix.Outcome.DEFERRED, install.get());
+        assertTrue(install.loads.isEmpty());
+    }
+
+    @Test
+    public void reportsPatchRejectedAfterDeadline() throws Exception {
+        Install install = new Install(0, new CountDownLatch(0), false, Hotfix.Outcome.NO_PATCH);
+        install.failure = new SignVerifyPatchFailedException("sign is not equal with main apk");
+        install.run();
+        assertEquals(Hotfix.Outcome.FAILED, install.get());
+        assertTrue(install.loads.isEmpty());
+        assertEquals(install.failure, install.errors.get(0));
+    }
+
+    @Test
+    public void reportsLoadThatThrows() throws Exception {
+        Install install = new Install(1000, new CountDownLatch(0), true, Hotfix.Outcome.APPLIED);
+        install.loadFailure = new IllegalStateException("no pathList");
+        install.run();
+        assertTrue(install.isDone());
+        assertEquals(Hotfix.Outcome.FAILED, install.get());
+        assertEquals(install.loadFailure, install.errors.get(0));
+    }
+
+    @Test
+    public void reportsRejectedPatch() throws Exception {
+        Install install = new Install(1000, new CountDownLatch(0), false, Hotfix.Outcome.NO_PATCH);
+        install.failure = new SignVerifyPatchFailedException("sign is not equal with main apk");
+        install.run();
+        assertEquals(Hotfix.Outcome.FAILED, install.get());
+        assertEquals(Collections.singletonList(true), install.loads);
+        assertEquals(install.failure, install.errors.get(0));
+    }
+
+    @Test
+    public void shortTimeoutDoesNotTakeOver() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Install install = new Install(5000, release, true, Hotfix.Outcome.APPLIED);
+        Thread worker = new Thread(install);
+        worker.start();
+        try {
+            install.get(20, TimeUnit.MILLISECONDS);
+            fail("returned before the patch was ready");
+        } catch (TimeoutException expected) {
+        }
+        assertFalse(install.isDone());
+        release.countDown();
+        assertEquals(Hotfix.Outcome.APPLIED, install.get());
+        worker.join();
+        assertEquals(Collections.singletonList(true), install.loads);
+    }
+
+    private static class Recorder implements InstallCallback {
+        final List<Hotfix.Outcome> outcomes = new ArrayList<Hotfix.Outcome>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+
+        @Override
+        public synchronized void onOutcome(Hotfix.Outcome outcome, Throwable error) {
+            outcomes.add(outcome);
+            errors.add(error);
+        }
+    }
+
+    private static class Install extends AsyncInstall {
+        final List<Boolean> loads = Collections.synchronizedList(new ArrayList<Boolean>());
+        final List<Hotfix.Outcome> outcomes;
+        final List<Throwable> errors;
+        private final CountDownLatch release;
+        private final boolean prepared;
+        private final Hotfix.Outcome loaded;
+        RuntimeException failure;
+        RuntimeException loadFailure;
+
+        Install(long deadlineMillis, CountDownLatch release, boolean prepared,
+                Hotfix.Outcome loaded) {
+            this(deadlineMillis, release, prepared, loaded, new Recorder());
+        }
+
+        private Install(long deadlineMillis, CountDownLatch release, boolean prepared,
+                        Hotfix.Outcome loaded, Recorder recorder) {
+            super(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis), recorder);
+            this.outcomes = recorder.outcomes;
+            this.errors = recorder.errors;
+            this.release = release;
+            this.prepared = prepared;
+            this.loaded = loaded;
+        }
+
+        @Override
+        boolean prepare() throws IOException, InterruptedException {
+            release.await();
+            if (failure != null) {
+                throw failure;
+            }
+            return prepared;
+        }
+
+        @Override
+        Hotfix.Outcome load(boolean switchSlots) {
+            loads.add(switchSlots);
+            if (loadFailure != null) {
+                throw loadFailure;
+            }
+            return loaded;
+        }
+    }
+}
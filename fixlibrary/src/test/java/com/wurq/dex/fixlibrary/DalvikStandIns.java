@@ -0,0 +1,228 @@
+package com.wurq.dex.fixlibrary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import dalvik.system.DexFile;
+
+/**
+ * Plain JVM stand-ins shaped like {@code dalvik.system.BaseDexClassLoader},
+ * {@code DexPathList} and {@code DexPathList.Element}, with the private members the
+ * {@link DexHotfix} installers reflect on: {@code pathList}, {@code dexElements},
+ * {@code dexElementsSuppressedExceptions}, {@code makeDexElements}, {@code makePathElements}
+ * and {@code loadDexFile}. One {@link DexPathList} carries the members of every platform
+ * version, each installer only touches its own.
+ *
+ * A "dex" here is a zip of class files. {@link BaseDexClassLoader#findClass} probes the
+ * elements in order like the platform does, so lookups resolve, and cost, what they would on a
+ * device with the same element list.
+ */
+final class DalvikStandIns {
+
+    private DalvikStandIns() {
+    }
+
+    static final class BaseDexClassLoader extends ClassLoader {
+        private final DexPathList pathList;
+
+        BaseDexClassLoader(List<File> files, ClassLoader parent) {
+            super(parent);
+            this.pathList = new DexPathList(files);
+        }
+
+        DexPathList getPathList() {
+            return pathList;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            Element element = pathList.findElement(name);
+            if (element == null) {
+                throw new ClassNotFoundException(name);
+            }
+            byte[] bytes = element.read(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    static final class DexPathList {
+        private Element[] dexElements;
+        private IOException[] dexElementsSuppressedExceptions;
+
+        DexPathList(List<File> files) {
+            ArrayList<IOException> suppressed = new ArrayList<IOException>();
+            dexElements = makeDexElements(new ArrayList<File>(files), null, suppressed);
+            if (!suppressed.isEmpty()) {
+                throw new IllegalArgumentException(suppressed.get(0));
+            }
+        }
+
+        Element[] getDexElements() {
+            return dexElements;
+        }
+
+        IOException[] getSuppressedExceptions() {
+            return dexElementsSuppressedExceptions;
+        }
+
+        /**
+         * @return the first element that has the class, as {@code DexPathList#findClass} probes
+         */
+        Element findElement(String name) {
+            for (Element element : dexElements) {
+                if (element.contains(name)) {
+                    return element;
+                }
+            }
+            return null;
+        }
+
+        /** API 14-18 */
+        private static Element[] makeDexElements(ArrayList<File> files, File optimizedDirectory) {
+            ArrayList<IOException> suppressed = new ArrayList<IOException>();
+            Element[] elements = makeDexElements(files, optimizedDirectory, suppressed);
+            if (!suppressed.isEmpty()) {
+                throw new IllegalArgumentException(suppressed.get(0));
+            }
+            return elements;
+        }
+
+        /** API 19-22; a file that can not be opened is skipped and its error suppressed */
+        private static Element[] makeDexElements(ArrayList<File> files, File optimizedDirectory,
+                                                 ArrayList<IOException> suppressedExceptions) {
+            return makePathElements(files, optimizedDirectory, suppressedExceptions);
+        }
+
+        /** API 23 */
+        private static Element[] makePathElements(List<File> files, File optimizedDirectory,
+                                                  List<IOException> suppressedExceptions) {
+            List<Element> elements = new ArrayList<Element>();
+            for (File file : files) {
+                try {
+                    elements.add(new Element(new File(""), false, file,
+                            loadDexFile(file, optimizedDirectory, null, null)));
+                } catch (IOException e) {
+                    suppressedExceptions.add(e);
+                }
+            }
+            return elements.toArray(new Element[elements.size()]);
+        }
+
+        /**
+         * API 24+. There is no {@link DexFile} off-device; the element reads the zip itself.
+         */
+        private static DexFile loadDexFile(File file, File optimizedDirectory, ClassLoader loader,
+                                           Element[] elements) throws IOException {
+            if (!file.isFile()) {
+                throw new IOException(file + " does not exist");
+            }
+            return null;
+        }
+    }
+
+    static final class Element {
+        private final File zip;
+        private final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+        public Element(File dir, boolean isDirectory, File zip, DexFile dexFile)
+                throws IOException {
+            this.zip = zip;
+            // 像dex一样一次读入, 查找不再访问文件
+            ZipFile file = new ZipFile(zip);
+            try {
+                for (ZipEntry entry : Collections.list(file.entries())) {
+                    classes.put(entry.getName(), readFully(file.getInputStream(entry)));
+                }
+            } finally {
+                file.close();
+            }
+        }
+
+        File getFile() {
+            return zip;
+        }
+
+        boolean contains(String className) {
+            return classes.containsKey(entryName(className));
+        }
+
+        byte[] read(String className) {
+            return classes.get(entryName(className));
+        }
+
+        private static String entryName(String className) {
+            return className.replace('.', '/') + ".class";
+        }
+
+        private static byte[] readFully(InputStream in) throws IOException {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a "dex" holding an empty {@code public class} for each name.
+     */
+    static File writeDex(File file, List<String> classNames) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (String name : classNames) {
+                out.putNextEntry(new ZipEntry(name.replace('.', '/') + ".class"));
+                out.write(emptyClass(name));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return the class file of {@code public class <name> extends Object}, with no members
+     */
+    static byte[] emptyClass(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(50);
+        out.writeShort(5);
+        out.writeByte(7);
+        out.writeShort(2);
+        out.writeByte(1);
+        out.writeUTF(name.replace('.', '/'));
+        out.writeByte(7);
+        out.writeShort(4);
+        out.writeByte(1);
+        out.writeUTF("java/lang/Object");
+        out.writeShort(0x0021);
+        out.writeShort(1);
+        out.writeShort(3);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        return bytes.toByteArray();
+    }
+}
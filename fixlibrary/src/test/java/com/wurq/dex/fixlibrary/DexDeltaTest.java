@@ -0,0 +1,133 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DexDeltaTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    @Test
+    public void rebuildsTargetFromSmallDelta() throws IOException {
+        byte[] base = random(1, 2 * 1024 * 1024);
+        ByteArrayOutputStream edited = new ByteArrayOutputStream();
+        edited.write(base, 0, 100000);
+        edited.write(random(2, 3000), 0, 3000);
+        edited.write(base, 120000, 500000);
+        edited.write(base, 0, 4096);
+        edited.write(base, 700000, base.length - 700000);
+        byte[] target = edited.toByteArray();
+
+        File baseFile = write("base.dex", base);
+        File targetFile = write("target.dex", target);
+        File delta = new File(dir, "classes.dex.delta");
+        DexDelta.diff(baseFile, targetFile, delta);
+        assertTrue("delta is " + delta.length() + " bytes", delta.length() < 16 * 1024);
+
+        File rebuilt = new File(dir, "classes.dex");
+        String digest = apply(baseFile, delta, rebuilt);
+        assertEquals(FileHelper.sha256(targetFile), digest);
+        assertEquals(FileHelper.sha256(targetFile), FileHelper.sha256(rebuilt));
+    }
+
+    @Test
+    public void rejectsOtherBase() throws IOException {
+        File baseFile = write("base.dex", random(3, 64 * 1024));
+        File targetFile = write("target.dex", random(4, 64 * 1024));
+        File delta = new File(dir, "classes.dex.delta");
+        DexDelta.diff(baseFile, targetFile, delta);
+
+        File otherBase = write("other.dex", random(5, 64 * 1024));
+        File rebuilt = new File(dir, "classes.dex");
+        try {
+            apply(otherBase, delta, rebuilt);
+            fail("applied against the wrong base");
+        } catch (IOException expected) {
+        }
+        assertFalse(rebuilt.exists());
+    }
+
+    @Test
+    public void rejectsCorruptedInsert() throws IOException {
+        byte[] base = random(6, 64 * 1024);
+        byte[] target = base.clone();
+        for (int i = 1000; i < 1100; i++) {
+            target[i] ^= 0x5a;
+        }
+        File baseFile = write("base.dex", base);
+        File delta = new File(dir, "classes.dex.delta");
+        DexDelta.diff(baseFile, write("target.dex", target), delta);
+
+        byte[] bytes = read(delta);
+        bytes[bytes.length - 2] ^= 1;
+        File rebuilt = new File(dir, "classes.dex");
+        try {
+            DexDelta.apply(baseFile, new ByteArrayInputStream(bytes), rebuilt);
+            fail("corrupted delta accepted");
+        } catch (IOException expected) {
+        }
+        assertFalse(rebuilt.exists());
+    }
+
+    private static String apply(File base, File delta, File target) throws IOException {
+        InputStream in = new FileInputStream(delta);
+        try {
+            return DexDelta.apply(base, in, target);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] random(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            FileHelper.copyFile(in, out);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
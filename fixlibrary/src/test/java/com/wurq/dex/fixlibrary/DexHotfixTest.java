@@ -0,0 +1,185 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class DexHotfixTest {
+
+    /**
+     * Installers that run on the platform versions this library supports.
+     */
+    private static final String[] INSTALLERS = {"V24", "V23", "V19", "V14"};
+
+    private static final String FIXED = "com.example.app.Fixed";
+    private static final String OTHER = "com.example.app.Other";
+
+    /**
+     * Shaped like DexPathList: a typed array field holding one element per dex.
+     */
+    static final class PathList {
+        Element[] dexElements;
+    }
+
+    static final class Element {
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private File optDir;
+    private File baseDex;
+    private File hackDex;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.getRoot();
+        optDir = new File(dir, "optdex");
+        baseDex = DalvikStandIns.writeDex(new File(dir, "base.apk"), Arrays.asList(FIXED, OTHER));
+        hackDex = DalvikStandIns.writeDex(new File(dir, "hack.apk"),
+                Collections.singletonList("AntilazyLoad"));
+    }
+
+    @Test
+    public void expandPutsNewElementsFirst() throws Exception {
+        Element app = new Element();
+        Element patch = new Element();
+        PathList pathList = new PathList();
+        pathList.dexElements = new Element[]{app};
+        DexHotfix.expandFieldArray(pathList, "dexElements", new Object[]{patch});
+        assertArrayEquals(new Object[]{patch, app}, pathList.dexElements);
+    }
+
+    @Test
+    public void reloadsReplaceTheirOwnElements() throws Exception {
+        Element app = new Element();
+        PathList pathList = new PathList();
+        pathList.dexElements = new Element[]{app};
+
+        Element hack = null;
+        Element[] patch = null;
+        for (int i = 0; i < 5; i++) {
+            hack = new Element();
+            DexHotfix.injectElements("test", pathList, DexHotfix.Owner.HACK, new Object[]{hack});
+            patch = new Element[]{new Element(), new Element()};
+            DexHotfix.injectElements("test", pathList, DexHotfix.Owner.PATCH, patch);
+        }
+        assertEquals(4, pathList.dexElements.length);
+        assertArrayEquals(new Object[]{patch[0], patch[1], hack, app}, pathList.dexElements);
+
+        // 补丁只剩一个dex
+        Element single = new Element();
+        DexHotfix.injectElements("test", pathList, DexHotfix.Owner.PATCH, new Object[]{single});
+        assertArrayEquals(new Object[]{single, hack, app}, pathList.dexElements);
+    }
+
+    @Test
+    public void installersPutPatchInFrontOfApp() throws Exception {
+        for (String name : INSTALLERS) {
+            DalvikStandIns.BaseDexClassLoader loader = newLoader();
+            DexHotfix.PrependStrategy installer = installer(name);
+            installer.check(loader);
+
+            File patch = patchDex(name + "-1.dex");
+            installer.install(loader, Collections.singletonList(hackDex), optDir,
+                    DexHotfix.Owner.HACK);
+            installer.install(loader, Collections.singletonList(patch), optDir,
+                    DexHotfix.Owner.PATCH);
+            assertFiles(name, loader, patch, hackDex, baseDex);
+            assertSame(name, patch, loader.getPathList().findElement(FIXED).getFile());
+            assertSame(name, baseDex, loader.getPathList().findElement(OTHER).getFile());
+            assertEquals(name, FIXED, loader.loadClass(FIXED).getName());
+        }
+    }
+
+    @Test
+    public void installersReplaceTheirPatchOnReload() throws Exception {
+        for (String name : INSTALLERS) {
+            DalvikStandIns.BaseDexClassLoader loader = newLoader();
+            DexHotfix.PrependStrategy installer = installer(name);
+            installer.install(loader, Collections.singletonList(hackDex), optDir,
+                    DexHotfix.Owner.HACK);
+            File first = patchDex(name + "-1.dex");
+            File second = patchDex(name + "-2.dex");
+            File third = patchDex(name + "-3.dex");
+            installer.install(loader, Collections.singletonList(first), optDir,
+                    DexHotfix.Owner.PATCH);
+            installer.install(loader, Arrays.asList(second, third), optDir,
+                    DexHotfix.Owner.PATCH);
+            assertFiles(name, loader, second, third, hackDex, baseDex);
+
+            installer.install(loader, Collections.singletonList(first), optDir,
+                    DexHotfix.Owner.PATCH);
+            assertFiles(name, loader, first, hackDex, baseDex);
+        }
+    }
+
+    @Test
+    public void suppressedErrorsAreKeptOnPathList() throws Exception {
+        for (String name : new String[]{"V23", "V19"}) {
+            DalvikStandIns.BaseDexClassLoader loader = newLoader();
+            File patch = patchDex(name + ".dex");
+            installer(name).install(loader, Arrays.asList(patch, new File(dir, "missing.dex")),
+                    optDir, DexHotfix.Owner.PATCH);
+            assertFiles(name, loader, patch, baseDex);
+            assertEquals(name, 1, loader.getPathList().getSuppressedExceptions().length);
+        }
+    }
+
+    @Test
+    public void checkRejectsOtherClassLoaders() throws Exception {
+        for (String name : INSTALLERS) {
+            try {
+                installer(name).check(new ClassLoader() {
+                });
+                fail(name + " accepted a class loader without pathList");
+            } catch (NoSuchFieldException expected) {
+            }
+        }
+        try {
+            installer("V4").check(newLoader());
+            fail("V4 accepted a class loader without mPaths");
+        } catch (NoSuchFieldException expected) {
+        }
+    }
+
+    private DalvikStandIns.BaseDexClassLoader newLoader() {
+        return new DalvikStandIns.BaseDexClassLoader(Collections.singletonList(baseDex),
+                DexHotfixTest.class.getClassLoader());
+    }
+
+    private File patchDex(String name) throws IOException {
+        return DalvikStandIns.writeDex(new File(dir, name), Collections.singletonList(FIXED));
+    }
+
+    static DexHotfix.PrependStrategy installer(String name) {
+        for (InjectionStrategy strategy : DexHotfix.getBuiltInStrategies()) {
+            if (strategy.getName().equals(name)) {
+                return (DexHotfix.PrependStrategy) strategy;
+            }
+        }
+        throw new AssertionError("no installer " + name);
+    }
+
+    private static void assertFiles(String installer, DalvikStandIns.BaseDexClassLoader loader,
+                                    File... files) {
+        DalvikStandIns.Element[] elements = loader.getPathList().getDexElements();
+        File[] actual = new File[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            actual[i] = elements[i].getFile();
+        }
+        assertArrayEquals(installer, files, actual);
+    }
+}
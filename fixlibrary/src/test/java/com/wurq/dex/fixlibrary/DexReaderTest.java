@@ -0,0 +1,237 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DexReaderTest {
+
+    private static final String[] CLASSES = {
+            "com.wurq.dex.hotfix.MainActivity",
+            "com.wurq.dex.hotfix.MainActivity$1",
+            "com.wurq.dex.hotfix.Café",
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    @Test
+    public void readsHeaderAndClassNames() throws Exception {
+        File dex = write("classes.dex", buildDex(CLASSES));
+        assertNull(DexReader.checkHeader(dex));
+
+        DexReader reader = DexReader.open(dex);
+        assertEquals("035", reader.getVersion());
+        assertEquals(dex.length(), reader.getFileSize());
+        assertEquals(CLASSES.length, reader.getClassDefsSize());
+        assertTrue(reader.verifyChecksum());
+        assertTrue(reader.verifySignature());
+        assertEquals(Arrays.asList(CLASSES), reader.getClassNames());
+    }
+
+    @Test
+    public void detectsCorruptedBody() throws Exception {
+        File dex = write("classes.dex", buildDex(CLASSES));
+        RandomAccessFile raf = new RandomAccessFile(dex, "rw");
+        try {
+            raf.seek(raf.length() - 2);
+            raf.write('X');
+        } finally {
+            raf.close();
+        }
+        assertNull(DexReader.checkHeader(dex));
+        DexReader reader = DexReader.open(dex);
+        assertFalse(reader.verifyChecksum());
+        assertFalse(reader.verifySignature());
+    }
+
+    @Test
+    public void rejectsTruncatedAndForeignFiles() throws Exception {
+        byte[] dex = buildDex(CLASSES);
+        File truncated = write("truncated.dex", Arrays.copyOf(dex, dex.length - 1));
+        assertNotNull(DexReader.checkHeader(truncated));
+
+        byte[] zip = dex.clone();
+        zip[0] = 'P';
+        zip[1] = 'K';
+        File foreign = write("foreign.dex", zip);
+        assertNotNull(DexReader.checkHeader(foreign));
+        try {
+            DexReader.open(foreign);
+            fail("opened a file without the dex magic");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsStringLengthPastTheEnd() throws Exception {
+        // 第5个字节置位第31位得到负数, 否则是远超文件的长度
+        byte[][] lengths = {{-1, -1, -1, -1, 0x0f}, {-1, -1, -1, 0x07}};
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] dex = buildDex(CLASSES);
+            int stringData = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN)
+                    .getInt(DexReader.HEADER_SIZE);
+            System.arraycopy(lengths[i], 0, dex, stringData, lengths[i].length);
+            DexReader reader = DexReader.open(write("length" + i + ".dex", dex));
+            try {
+                reader.getClassNames();
+                fail("read a string of " + Arrays.toString(lengths[i]) + " UTF-16 units");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void readsStoredDexInsideArchive() throws Exception {
+        String[] first = {"com.wurq.dex.hotfix.MainActivity"};
+        String[] second = {"com.wurq.dex.hotfix.Café", "com.wurq.dex.hotfix.MainActivity$1"};
+        File archive = new File(dir, "patch.apk");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+        try {
+            putEntry(out, "assets/readme.txt", "not a dex".getBytes("UTF-8"), ZipEntry.DEFLATED);
+            putEntry(out, "classes2.dex", buildDex(second), ZipEntry.STORED);
+            putEntry(out, "classes.dex", buildDex(first), ZipEntry.STORED);
+        } finally {
+            out.close();
+        }
+
+        List<DexReader> readers = DexReader.openAll(archive);
+        assertEquals(2, readers.size());
+        assertEquals(Arrays.asList(first), readers.get(0).getClassNames());
+        assertEquals(Arrays.asList(second), readers.get(1).getClassNames());
+        for (DexReader reader : readers) {
+            assertTrue(reader.verifyChecksum());
+            assertTrue(reader.verifySignature());
+        }
+
+        File compressed = new File(dir, "compressed.apk");
+        out = new ZipOutputStream(new FileOutputStream(compressed));
+        try {
+            putEntry(out, "classes.dex", buildDex(first), ZipEntry.DEFLATED);
+        } finally {
+            out.close();
+        }
+        try {
+            DexReader.openAll(compressed);
+            fail("opened a compressed dex in place");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void putEntry(ZipOutputStream out, String name, byte[] data, int method)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    /**
+     * Lays out a dex with only the tables {@link DexReader} reads: string_ids, type_ids and
+     * class_defs, one string and type per class.
+     */
+    private static byte[] buildDex(String[] classes) throws Exception {
+        int count = classes.length;
+        int stringIdsOff = DexReader.HEADER_SIZE;
+        int typeIdsOff = stringIdsOff + count * 4;
+        int classDefsOff = typeIdsOff + count * 4;
+        int dataOff = classDefsOff + count * 32;
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] stringOffsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            stringOffsets[i] = dataOff + data.size();
+            String descriptor = "L" + classes[i].replace('.', '/') + ";";
+            data.write(descriptor.length());
+            for (char c : descriptor.toCharArray()) {
+                if (c < 0x80) {
+                    data.write(c);
+                } else {
+                    data.write(0xc0 | (c >> 6));
+                    data.write(0x80 | (c & 0x3f));
+                }
+            }
+            data.write(0);
+        }
+
+        ByteBuffer dex = ByteBuffer.allocate(dataOff + data.size()).order(ByteOrder.LITTLE_ENDIAN);
+        dex.put(new byte[]{'d', 'e', 'x', '\n', '0', '3', '5', 0});
+        dex.putInt(32, dex.capacity());
+        dex.putInt(36, DexReader.HEADER_SIZE);
+        dex.putInt(40, 0x12345678);
+        dex.putInt(56, count);
+        dex.putInt(60, stringIdsOff);
+        dex.putInt(64, count);
+        dex.putInt(68, typeIdsOff);
+        dex.putInt(96, count);
+        dex.putInt(100, classDefsOff);
+        dex.putInt(104, data.size());
+        dex.putInt(108, dataOff);
+        for (int i = 0; i < count; i++) {
+            dex.putInt(stringIdsOff + i * 4, stringOffsets[i]);
+            dex.putInt(typeIdsOff + i * 4, i);
+            dex.putInt(classDefsOff + i * 32, i);
+        }
+        dex.position(dataOff);
+        dex.put(data.toByteArray());
+
+        byte[] bytes = dex.array();
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update(bytes, 32, bytes.length - 32);
+        System.arraycopy(sha1.digest(), 0, bytes, 12, 20);
+        Adler32 adler = new Adler32();
+        adler.update(bytes, 12, bytes.length - 12);
+        dex.putInt(8, (int) adler.getValue());
+        return bytes;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,89 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileHelperTest {
+
+    /**
+     * More than one pooled buffer, and not a multiple of it.
+     */
+    private static final int SIZE = 2 * FileHelper.BUFFER_SIZE + 123;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void copiesFileAndStream() throws IOException {
+        File src = createFile("src.apk");
+        String digest = FileHelper.sha256(src);
+
+        File channel = new File(folder.getRoot(), "channel.apk");
+        FileHelper.copyFile(src, channel);
+        assertEquals(digest, FileHelper.sha256(channel));
+
+        File stream = new File(folder.getRoot(), "stream.apk");
+        InputStream in = new FileInputStream(src);
+        OutputStream out = new FileOutputStream(stream);
+        try {
+            FileHelper.copyFile(in, out);
+        } finally {
+            out.close();
+            in.close();
+        }
+        assertEquals(digest, FileHelper.sha256(stream));
+    }
+
+    @Test
+    public void copiesPathsIntoDirOnce() throws IOException {
+        File src = createFile("patch.apk");
+        File dir = folder.newFolder("dest");
+        File existing = new File(dir, "patch.apk");
+        FileHelper.copyFile(createFile("other.apk"), existing);
+        long length = existing.length();
+        ArrayList<String> paths = new ArrayList<String>();
+        paths.add(src.getAbsolutePath());
+
+        // 已存在的文件不会被覆盖
+        FileHelper.copyFile(paths, dir);
+        assertEquals(length, existing.length());
+        existing.delete();
+        FileHelper.copyFile(paths, dir);
+        assertEquals(FileHelper.sha256(src), FileHelper.sha256(existing));
+    }
+
+    @Test
+    public void copyAssetReusesCopiedFile() throws IOException {
+        File dir = folder.newFolder("hotfix");
+        File hack = createFile(Hotfix.HACK_DEX);
+        FileHelper.copyFile(hack, new File(dir, Hotfix.HACK_DEX));
+        // 已复制过时不会访问assets
+        assertEquals(new File(dir, Hotfix.HACK_DEX).getAbsolutePath(),
+                FileHelper.copyAsset(null, Hotfix.HACK_DEX, dir));
+    }
+
+    private File createFile(String name) throws IOException {
+        byte[] data = new byte[SIZE];
+        new Random(name.hashCode()).nextBytes(data);
+        File file = folder.newFile(name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,100 @@
+package com.wurq.dex.fixlibrary;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class InjectionStrategiesTest {
+
+    private final ClassLoader loader = getClass().getClassLoader();
+
+    @After
+    public void tearDown() {
+        InjectionStrategies.reset();
+    }
+
+    @Test
+    public void choosesCheapestSupportedOnce() {
+        Strategy failing = new Strategy("failing", 50, true) {
+            @Override
+            public boolean isSupported(ClassLoader loader) {
+                super.isSupported(loader);
+                throw new IllegalStateException("no such field");
+            }
+        };
+        Strategy unsupported = new Strategy("unsupported", 60, false);
+        Strategy supported = new Strategy("supported", 90, true);
+        Strategy expensive = new Strategy("expensive", 1000, true);
+        InjectionStrategies.add(expensive);
+        InjectionStrategies.add(supported);
+        InjectionStrategies.add(unsupported);
+        InjectionStrategies.add(failing);
+
+        assertSame(supported, InjectionStrategies.select(loader));
+        assertSame(supported, InjectionStrategies.select(loader));
+        assertEquals(1, failing.checks);
+        assertEquals(1, unsupported.checks);
+        assertEquals(1, supported.checks);
+        assertEquals(0, expensive.checks);
+    }
+
+    @Test
+    public void modeLeavesAddedStrategiesOut() {
+        Strategy cheap = new Strategy("cheap", 1, true);
+        InjectionStrategies.add(cheap);
+        assertSame(cheap, InjectionStrategies.select(loader));
+
+        InjectionStrategies.setMode(Hotfix.InjectionMode.PREPEND);
+        assertNotSame(cheap, InjectionStrategies.select(loader));
+
+        InjectionStrategies.setMode(null);
+        assertSame(cheap, InjectionStrategies.select(loader));
+    }
+
+    private static class Strategy implements InjectionStrategy {
+        private final String name;
+        private final int cost;
+        private final boolean supported;
+        int checks;
+
+        Strategy(String name, int cost, boolean supported) {
+            this.name = name;
+            this.cost = cost;
+            this.supported = supported;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isSupported(ClassLoader loader) {
+            checks++;
+            return supported;
+        }
+
+        @Override
+        public int getCost() {
+            return cost;
+        }
+
+        @Override
+        public boolean needsHackDex() {
+            return false;
+        }
+
+        @Override
+        public boolean inject(Context context, List<File> dexFiles, File dexOptDir) {
+            return true;
+        }
+    }
+}
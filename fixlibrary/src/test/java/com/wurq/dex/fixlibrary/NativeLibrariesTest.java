@@ -0,0 +1,36 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NativeLibrariesTest {
+
+    @Test
+    public void recognisesLibraryEntries() {
+        assertTrue(NativeLibraries.isNativeLibrary("lib/armeabi-v7a/libfoo.so"));
+        assertEquals("armeabi-v7a", NativeLibraries.abiOf("lib/armeabi-v7a/libfoo.so"));
+        assertFalse(NativeLibraries.isNativeLibrary("lib/libfoo.so"));
+        assertFalse(NativeLibraries.isNativeLibrary("lib/x86/sub/libfoo.so"));
+        assertFalse(NativeLibraries.isNativeLibrary("assets/lib/x86/libfoo.so"));
+        assertFalse(NativeLibraries.isNativeLibrary("lib/x86/libfoo.so.txt"));
+    }
+
+    @Test
+    public void picksFirstAbiOfProcessThePatchHas() {
+        assertEquals("armeabi-v7a", NativeLibraries.selectAbi(
+                Arrays.asList("armeabi", "armeabi-v7a", "x86"),
+                Arrays.asList("armeabi-v7a", "armeabi")));
+        assertEquals("armeabi", NativeLibraries.selectAbi(
+                Arrays.asList("armeabi", "arm64-v8a"),
+                Arrays.asList("armeabi-v7a", "armeabi")));
+        assertNull(NativeLibraries.selectAbi(Collections.singletonList("x86"),
+                Arrays.asList("armeabi-v7a", "armeabi")));
+    }
+}
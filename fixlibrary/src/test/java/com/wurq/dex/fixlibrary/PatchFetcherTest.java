@@ -0,0 +1,206 @@
+package com.wurq.dex.fixlibrary;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class PatchFetcherTest {
+
+    private static final int CHUNK = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private HttpServer server;
+    private PatchServer handler;
+    private byte[] patch;
+    private String digest;
+    private URL url;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.getRoot();
+        patch = new byte[300 * 1024 + 17];
+        new Random(7).nextBytes(patch);
+        MessageDigest sha = FileHelper.newSha256();
+        sha.update(patch);
+        digest = FileHelper.toHex(sha.digest());
+
+        handler = new PatchServer();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/patch.apk", handler);
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/patch.apk");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void fetchesInRangedChunks() throws IOException {
+        File file = newFetcher().fetch(url, digest, patch.length);
+        assertEquals(digest, FileHelper.sha256(file));
+        assertEquals(5, handler.requests.get());
+        assertEquals(patch.length, handler.sent.get());
+    }
+
+    @Test
+    public void resumesAfterDroppedConnections() throws IOException {
+        handler.dropAfter = 40 * 1024;
+        handler.drops.set(3);
+        File file = newFetcher().fetch(url, digest, -1);
+        assertEquals(digest, FileHelper.sha256(file));
+        // 断开的连接不会导致重新下载已经收到的部分
+        assertEquals(patch.length, handler.sent.get());
+    }
+
+    @Test
+    public void resumesPartOfEarlierRun() throws IOException {
+        int half = patch.length / 2;
+        OutputStream out = new FileOutputStream(new File(dir, digest + ".part"));
+        try {
+            out.write(patch, 0, half);
+        } finally {
+            out.close();
+        }
+        File file = newFetcher().fetch(url, digest, patch.length);
+        assertEquals(digest, FileHelper.sha256(file));
+        assertEquals(patch.length - half, handler.sent.get());
+        assertFalse(new File(dir, digest + ".part").exists());
+    }
+
+    @Test
+    public void takesWholeBodyWithoutRangeSupport() throws IOException {
+        handler.ranges = false;
+        OutputStream out = new FileOutputStream(new File(dir, digest + ".part"));
+        try {
+            out.write(patch, 0, 1000);
+        } finally {
+            out.close();
+        }
+        File file = newFetcher().fetch(url, digest, patch.length);
+        assertEquals(digest, FileHelper.sha256(file));
+        assertEquals(1, handler.requests.get());
+    }
+
+    @Test
+    public void rejectsOtherContent() throws IOException {
+        String other = digest.replace(digest.charAt(0), digest.charAt(0) == 'a' ? 'b' : 'a');
+        try {
+            newFetcher().fetch(url, other, patch.length);
+            fail("accepted a patch with another digest");
+        } catch (IOException expected) {
+        }
+        assertFalse(new File(dir, other + ".part").exists());
+        assertFalse(new File(dir, other + ".apk").exists());
+    }
+
+    @Test
+    public void givesUpAfterFailuresInARow() throws IOException {
+        handler.status = 503;
+        try {
+            newFetcher().fetch(url, digest, patch.length);
+            fail("fetched from a failing server");
+        } catch (IOException expected) {
+        }
+        assertEquals(3, handler.requests.get());
+    }
+
+    @Test
+    public void givesUpOnEmptyChunks() throws IOException {
+        handler.empty = true;
+        try {
+            newFetcher().fetch(url, digest, patch.length);
+            fail("fetched from a server sending empty chunks");
+        } catch (IOException expected) {
+        }
+        assertEquals(3, handler.requests.get());
+    }
+
+    private PatchFetcher newFetcher() {
+        PatchFetcher fetcher = new PatchFetcher(dir, CHUNK, 3);
+        fetcher.backoffMillis = 1;
+        return fetcher;
+    }
+
+    /**
+     * Serves {@link #patch} honouring single {@code Range} requests, optionally dropping
+     * connections part way, answering with an error or with empty bodies.
+     */
+    private class PatchServer implements HttpHandler {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicInteger drops = new AtomicInteger();
+        volatile int dropAfter;
+        volatile boolean ranges = true;
+        volatile int status;
+        volatile boolean empty;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            try {
+                if (status != 0) {
+                    exchange.sendResponseHeaders(status, -1);
+                    return;
+                }
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                int first = 0;
+                int last = patch.length - 1;
+                int code = 200;
+                if (ranges && range != null) {
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    first = Integer.parseInt(bounds[0]);
+                    last = Math.min(last, Integer.parseInt(bounds[1]));
+                    code = 206;
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + first + "-" + last + "/" + patch.length);
+                }
+                int length = last - first + 1;
+                if (empty) {
+                    exchange.sendResponseHeaders(code, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(code, length);
+                OutputStream body = exchange.getResponseBody();
+                if (drops.get() > 0 && length > dropAfter) {
+                    drops.decrementAndGet();
+                    body.write(patch, first, dropAfter);
+                    body.flush();
+                    sent.addAndGet(dropAfter);
+                    // 连接中途断开
+                    throw new IOException("dropped");
+                }
+                body.write(patch, first, length);
+                sent.addAndGet(length);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
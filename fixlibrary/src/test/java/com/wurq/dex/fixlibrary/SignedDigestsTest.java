@@ -0,0 +1,166 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SignedDigestsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private KeyPair appKey;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.getRoot();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        appKey = generator.generateKeyPair();
+    }
+
+    @Test
+    public void extractedEntriesMatchSignedDigests() throws Exception {
+        File patch = signedPatch(appKey);
+        Map<String, String> signed = SignedDigests.verify(patch, appKey.getPublic());
+        assertEquals(3, signed.size());
+
+        Map<String, String> digests = new HashMap<String, String>();
+        List<File> files = FileHelper.unZip(patch, new File(dir, "out"),
+                FileHelper.glob("classes*.dex"), 2, digests);
+        assertEquals(2, files.size());
+        SignedDigests.check(signed, entries(digests));
+
+        digests.put("classes2.dex", FileHelper.toHex(new byte[32]));
+        try {
+            SignedDigests.check(signed, entries(digests));
+            fail("accepted an entry that does not match its digest");
+        } catch (SignVerifyPatchFailedException expected) {
+        }
+        digests.clear();
+        digests.put("classes3.dex", FileHelper.toHex(new byte[32]));
+        try {
+            SignedDigests.check(signed, entries(digests));
+            fail("accepted an entry that is not in the digests");
+        } catch (SignVerifyPatchFailedException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsOtherKeyAndUnsignedPatch() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        File patch = signedPatch(generator.generateKeyPair());
+        try {
+            SignedDigests.verify(patch, appKey.getPublic());
+            fail("accepted digests signed with another key");
+        } catch (SignVerifyPatchFailedException expected) {
+        }
+        try {
+            SignedDigests.verify(unsignedPatch(), appKey.getPublic());
+            fail("accepted a patch without digests");
+        } catch (SignVerifyPatchFailedException expected) {
+        }
+    }
+
+    @Test
+    public void keepsStoredEntriesAligned() throws Exception {
+        File patch = signedPatch(appKey);
+        List<ZipLayout.Entry> layout = ZipLayout.read(patch);
+        assertEquals(5, layout.size());
+        for (ZipLayout.Entry entry : layout) {
+            if (entry.name.endsWith(".dex")) {
+                assertTrue(entry.name, entry.isStoredAndAligned(ZipLayout.DEX_ALIGNMENT));
+            } else if (entry.name.startsWith("res/")) {
+                assertEquals(entry.name, ZipEntry.DEFLATED, entry.method);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsEntryListedTwice() throws Exception {
+        String digest = FileHelper.toHex(new byte[32]);
+        byte[] digests = ("hotfix-digests 1\n" + digest + " classes.dex\n" + digest
+                + " classes.dex\n").getBytes("UTF-8");
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(appKey.getPrivate());
+        signer.update(digests);
+        File patch = new File(dir, "twice.apk");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(patch));
+        try {
+            out.putNextEntry(new ZipEntry(SignedDigests.DIGESTS_ENTRY));
+            out.write(digests);
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry(SignedDigests.SIGNATURE_ENTRY));
+            out.write(signer.sign());
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        try {
+            SignedDigests.verify(patch, appKey.getPublic());
+            fail("accepted digests naming an entry twice");
+        } catch (SignVerifyPatchFailedException expected) {
+        }
+    }
+
+    private File signedPatch(KeyPair key) throws Exception {
+        File signed = new File(dir, "signed.apk");
+        SignedDigests.sign(unsignedPatch(), signed, key.getPrivate());
+        return signed;
+    }
+
+    private File unsignedPatch() throws IOException {
+        File patch = new File(dir, "patch.apk");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(patch));
+        try {
+            // 名字长度不同, 对齐需要的填充也不同
+            String[] names = {"classes.dex", "classes2.dex", "res/layout/main.xml"};
+            for (String name : names) {
+                byte[] data = ("content of " + name).getBytes("UTF-8");
+                ZipEntry entry = new ZipEntry(name);
+                if (name.endsWith(".dex")) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(data);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return patch;
+    }
+
+    private static List<PatchManifest.Entry> entries(Map<String, String> digests) {
+        List<PatchManifest.Entry> entries = new ArrayList<PatchManifest.Entry>();
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            entries.add(new PatchManifest.Entry(digest.getKey(), 0, digest.getValue()));
+        }
+        return entries;
+    }
+}
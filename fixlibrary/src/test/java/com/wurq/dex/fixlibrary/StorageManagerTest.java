@@ -0,0 +1,118 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StorageManagerTest {
+
+    private static final int PATCH_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File filesDir;
+    private PatchStore store;
+    private long now;
+
+    @Before
+    public void setUp() {
+        filesDir = folder.getRoot();
+        store = new PatchStore(filesDir, null, FileHelper.glob("classes*.dex"), 1, false);
+        // 文件系统的时间精度可能只有秒
+        now = System.currentTimeMillis() / 1000 * 1000;
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedPatchesOverBudget() throws IOException {
+        addPatch("aa", now - 40000);
+        addPatch("bb", now - 30000);
+        addPatch("cc", now - 20000);
+        addPatch("dd", now - 10000);
+        store.writeSlot(PatchStore.ACTIVE_SLOT, "aa");
+        new File(store.getPatchDir("aa"), PatchManifest.FILE_NAME).setLastModified(now - 50000);
+
+        // 槽位文件也算在内
+        long freed = new StorageManager(store, 3 * PATCH_SIZE + 100).trim(
+                Collections.<String>emptyList());
+
+        assertEquals(PATCH_SIZE, freed);
+        assertTrue(store.getPatchDir("aa").exists());
+        assertFalse(store.getPatchDir("bb").exists());
+        assertFalse(new File(store.getOptRootDir(), "bb").exists());
+        assertTrue(store.getPatchDir("cc").exists());
+        assertTrue(store.getPatchDir("dd").exists());
+    }
+
+    @Test
+    public void neverEvictsSlotsOrLoadedPatch() throws IOException {
+        addPatch("aa", now - 30000);
+        addPatch("bb", now - 20000);
+        addPatch("cc", now - 10000);
+        store.writeSlot(PatchStore.ACTIVE_SLOT, "cc");
+        store.writeSlot(PatchStore.STAGING_SLOT, "bb");
+
+        new StorageManager(store, 0).trim(Collections.singletonList("aa"));
+
+        assertTrue(store.getPatchDir("aa").exists());
+        assertTrue(store.getPatchDir("bb").exists());
+        assertTrue(store.getPatchDir("cc").exists());
+    }
+
+    @Test
+    public void deletesLeftoversWithinBudget() throws IOException {
+        addPatch("aa", now);
+        File orphanOpt = new File(store.getOptRootDir(), "ee");
+        orphanOpt.mkdirs();
+        File unfinished = new File(store.getHotfixDir(), "ff");
+        unfinished.mkdirs();
+        File incoming = new File(store.getHotfixDir(), "incoming.tmp");
+        incoming.mkdirs();
+        write(new File(store.getHotfixDir(), Hotfix.HACK_DEX), 10);
+
+        assertEquals(0, new StorageManager(store, Long.MAX_VALUE).trim(
+                Collections.<String>emptyList()));
+
+        assertTrue(store.getPatchDir("aa").exists());
+        assertFalse(orphanOpt.exists());
+        assertFalse(unfinished.exists());
+        assertTrue(incoming.exists());
+        assertTrue(new File(store.getHotfixDir(), Hotfix.HACK_DEX).exists());
+    }
+
+    /**
+     * A patch of {@link #PATCH_SIZE} bytes with its optimized output, last used at
+     * {@code lastUsed}.
+     */
+    private void addPatch(String digest, long lastUsed) throws IOException {
+        File patchDir = store.getPatchDir(digest);
+        patchDir.mkdirs();
+        write(new File(patchDir, "classes.dex"), PATCH_SIZE / 2);
+        File manifest = new File(patchDir, PatchManifest.FILE_NAME);
+        write(manifest, 0);
+        manifest.setLastModified(lastUsed);
+        File optDir = new File(store.getOptRootDir(), digest);
+        optDir.mkdirs();
+        write(new File(optDir, "classes.dex"), PATCH_SIZE / 2);
+    }
+
+    private static void write(File file, int size) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StoreLockTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    @Test
+    public void readersShareAndWritersExclude() throws Exception {
+        final StoreLock lock = StoreLock.get(new File(dir, StoreLock.STORE_LOCK));
+        assertTrue(lock.lockShared(0));
+        final AtomicBoolean otherReader = new AtomicBoolean();
+        final AtomicBoolean writer = new AtomicBoolean(true);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                otherReader.set(lock.lockShared(100));
+                lock.unlockShared();
+                writer.set(lock.lockExclusive(100));
+            }
+        });
+        thread.start();
+        thread.join();
+        assertTrue(otherReader.get());
+        assertFalse(writer.get());
+
+        lock.unlockShared();
+        assertTrue(lock.lockExclusive(0));
+        lock.unlockExclusive();
+    }
+
+    @Test
+    public void waitsForAnotherProcess() throws Exception {
+        File file = new File(dir, StoreLock.PREPARE_LOCK);
+        Process child = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                Holder.class.getName(), file.getPath(), "600").start();
+        try {
+            BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream()));
+            assertEquals("locked", out.readLine());
+
+            StoreLock lock = StoreLock.get(file);
+            assertFalse(lock.lockShared(50));
+            long start = System.nanoTime();
+            assertTrue(lock.lockExclusive(10000));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 10000);
+            lock.unlockExclusive();
+        } finally {
+            child.destroy();
+            child.waitFor();
+        }
+    }
+
+    /**
+     * Holds an exclusive lock on a file in a separate process for a while.
+     */
+    public static class Holder {
+        public static void main(String[] args) throws Exception {
+            StoreLock lock = StoreLock.get(new File(args[0]));
+            if (!lock.lockExclusive(1000)) {
+                System.exit(1);
+            }
+            System.out.println("locked");
+            System.out.flush();
+            new CountDownLatch(1).await(Long.parseLong(args[1]), TimeUnit.MILLISECONDS);
+            lock.unlockExclusive();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VerdictCacheTest {
+
+    private static final String PATCH = "aa11";
+    private static final String CERT = "cc33";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    @Test
+    public void remembersVerdictPerPatchAndCertificate() {
+        VerdictCache verdicts = new VerdictCache(dir);
+        assertFalse(verdicts.isVerified(PATCH, 100, CERT));
+
+        verdicts.record(PATCH, 100, CERT);
+        assertTrue(new VerdictCache(dir).isVerified(PATCH, 100, CERT));
+        assertFalse(verdicts.isVerified(PATCH, 101, CERT));
+        assertFalse(verdicts.isVerified(PATCH, 100, "dd44"));
+        assertFalse(verdicts.isVerified("bb22", 100, CERT));
+    }
+
+    @Test
+    public void ignoresForgedVerdicts() throws IOException {
+        VerdictCache verdicts = new VerdictCache(dir);
+        verdicts.record(PATCH, 100, CERT);
+        write(VerdictCache.FILE_NAME, "bb22 100 " + CERT + " 00\n");
+        assertFalse(verdicts.isVerified("bb22", 100, CERT));
+
+        verdicts.record(PATCH, 100, CERT);
+        write(VerdictCache.KEY_FILE_NAME, "0123456789abcdef0123456789abcdef");
+        assertFalse(verdicts.isVerified(PATCH, 100, CERT));
+    }
+
+    private void write(String name, String content) throws IOException {
+        OutputStream out = new FileOutputStream(new File(dir, name));
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+}
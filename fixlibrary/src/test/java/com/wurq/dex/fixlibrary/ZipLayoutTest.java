@@ -0,0 +1,107 @@
+package com.wurq.dex.fixlibrary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ZipLayoutTest {
+
+    private static final byte[] DATA = "dex\n035\0".getBytes();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    @Test
+    public void findsDataOfEveryEntry() throws IOException {
+        File zip = write("patch.apk");
+        List<ZipLayout.Entry> entries = ZipLayout.read(zip);
+        assertEquals(2, entries.size());
+        assertEquals("classes.dex", entries.get(0).name);
+        assertEquals(ZipEntry.STORED, entries.get(0).method);
+        assertEquals(DATA.length, entries.get(0).size);
+        assertEquals("assets/readme.txt", entries.get(1).name);
+
+        byte[] data = new byte[DATA.length];
+        RandomAccessFile raf = new RandomAccessFile(zip, "r");
+        try {
+            raf.seek(entries.get(0).dataOffset);
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        assertEquals(new String(DATA), new String(data));
+    }
+
+    @Test
+    public void rejectsNameRunningPastCentralDirectory() throws IOException {
+        File zip = write("corrupt.apk");
+        // 最后一个条目的文件名长度改成 0xffff
+        RandomAccessFile raf = new RandomAccessFile(zip, "rw");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            int central = -1;
+            for (int i = bytes.length - 4; i >= 0; i--) {
+                if (bytes[i] == 'P' && bytes[i + 1] == 'K' && bytes[i + 2] == 1
+                        && bytes[i + 3] == 2) {
+                    central = i;
+                    break;
+                }
+            }
+            assertTrue(central >= 0);
+            raf.seek(central + 28);
+            raf.write(new byte[]{(byte) 0xff, (byte) 0xff});
+        } finally {
+            raf.close();
+        }
+        try {
+            ZipLayout.read(zip);
+            fail("read a central directory entry past its end");
+        } catch (ZipException expected) {
+        }
+    }
+
+    private File write(String name) throws IOException {
+        File file = new File(dir, name);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            ZipEntry dex = new ZipEntry("classes.dex");
+            dex.setMethod(ZipEntry.STORED);
+            dex.setSize(DATA.length);
+            CRC32 crc = new CRC32();
+            crc.update(DATA);
+            dex.setCrc(crc.getValue());
+            out.putNextEntry(dex);
+            out.write(DATA);
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("assets/readme.txt"));
+            out.write("readme".getBytes());
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}